@@ -0,0 +1,46 @@
+package app.grapheneos.pdfviewer;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/*
+    Adapts the in-memory ByteArrayInputStream accepted by the original loadPdf entry
+    point. Every read repositions the shared stream under its lock.
+*/
+
+class ByteArrayDataSource implements PdfDataSource {
+    private final ByteArrayInputStream inputStream;
+    private final long size;
+
+    ByteArrayDataSource(ByteArrayInputStream inputStream) {
+        this.inputStream = inputStream;
+        synchronized (inputStream) {
+            inputStream.reset();
+            size = inputStream.available();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int readAt(long position, @NonNull byte[] buffer, int offset, int size) {
+        if (position >= this.size) {
+            return -1;
+        }
+        synchronized (inputStream) {
+            inputStream.reset();
+            inputStream.skip(position);
+            return inputStream.read(buffer, offset, size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
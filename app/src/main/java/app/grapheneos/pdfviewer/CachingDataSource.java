@@ -0,0 +1,215 @@
+package app.grapheneos.pdfviewer;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/*
+    Block-aligned LRU cache in front of a PdfDataSource. Memory use is bounded by the
+    cache budget rather than the document size. When pdf.js reads sequentially, misses
+    are filled with a single larger read of the following blocks so that the next
+    requests are served from memory and the source sees fewer, bigger reads.
+
+    The cache lock is only held to look blocks up and insert them, so hits are not held
+    up by a slow read of the source. A reader that misses a block another thread is
+    already fetching waits for that fetch instead of reading the block again. Reads of
+    the source itself still happen one at a time, as PdfDataSource promises.
+*/
+
+class CachingDataSource implements PdfDataSource {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int READ_AHEAD_BLOCKS = 4;
+
+    // A run of blocks being read from the source, shared by the readers waiting for them
+    private static final class Fetch {
+        final long first;
+        final long last;
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[][] blocks;
+        IOException error;
+
+        Fetch(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        byte[] await(long index) throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for block " + index);
+            }
+            if (error != null) {
+                throw new IOException("reading block " + index + " failed", error);
+            }
+            return blocks[(int) (index - first)];
+        }
+    }
+
+    private final PdfDataSource source;
+    private final long size;
+    // Held while reading the source, never together with the cache lock
+    private final Object sourceLock = new Object();
+    // The blocks, the fetches and lastBlock are guarded by this
+    private final LinkedHashMap<Long, byte[]> blocks;
+    private final HashMap<Long, Fetch> fetches = new HashMap<>();
+    private int maxBlocks;
+    private long lastBlock = -2;
+
+    CachingDataSource(PdfDataSource source, int budgetBytes) throws IOException {
+        this.source = source;
+        this.size = source.getSize();
+        this.maxBlocks = blocksForBudget(budgetBytes);
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    private static int blocksForBudget(int budgetBytes) {
+        // Always keep room for one read-ahead run so that it is not evicted while filling
+        return Math.max(READ_AHEAD_BLOCKS + 1, budgetBytes / BLOCK_SIZE);
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int readAt(long position, @NonNull byte[] buffer, int offset, int size) throws IOException {
+        if (position >= this.size) {
+            return -1;
+        }
+        final int total = (int) Math.min(size, this.size - position);
+        int done = 0;
+        while (done < total) {
+            final long current = position + done;
+            final long index = current / BLOCK_SIZE;
+            final long lastNeeded = (position + total - 1) / BLOCK_SIZE;
+            final byte[] block = getBlock(index, lastNeeded);
+            final int blockOffset = (int) (current - index * BLOCK_SIZE);
+            final int n = Math.min(total - done, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, buffer, offset + done, n);
+            done += n;
+        }
+        return total;
+    }
+
+    // The block at index, from the cache, from a fetch already under way, or from a new
+    // fetch of the run of missing blocks starting there
+    private byte[] getBlock(long index, long lastNeeded) throws IOException {
+        Fetch fetch;
+        boolean started = false;
+        synchronized (this) {
+            final boolean sequential = index == lastBlock + 1;
+            lastBlock = index;
+            final byte[] block = blocks.get(index);
+            if (block != null) {
+                return block;
+            }
+            fetch = fetches.get(index);
+            if (fetch == null) {
+                fetch = new Fetch(index, lastToFetch(index, lastNeeded, sequential));
+                for (long i = fetch.first; i <= fetch.last; i++) {
+                    fetches.put(i, fetch);
+                }
+                started = true;
+            }
+        }
+        if (started) {
+            fill(fetch);
+        }
+        return fetch.await(index);
+    }
+
+    // End of the run of missing blocks starting at first, covering at least up to
+    // lastNeeded and extended by the read-ahead window when access is sequential
+    private long lastToFetch(long first, long lastNeeded, boolean sequential) {
+        final long lastBlockOfFile = (this.size - 1) / BLOCK_SIZE;
+        long last = first;
+        long limit = lastNeeded;
+        if (sequential || lastNeeded > first) {
+            limit += READ_AHEAD_BLOCKS;
+        }
+        limit = Math.min(Math.min(limit, lastBlockOfFile), first + maxBlocks - 1);
+        while (last < limit && !blocks.containsKey(last + 1) && !fetches.containsKey(last + 1)) {
+            last++;
+        }
+        return last;
+    }
+
+    // Read the blocks of fetch from the source, cache them and wake up its readers
+    private void fill(Fetch fetch) {
+        final long start = fetch.first * BLOCK_SIZE;
+        final int length = (int) (Math.min(this.size, (fetch.last + 1) * BLOCK_SIZE) - start);
+        byte[][] result = null;
+        IOException error = null;
+        try {
+            final byte[] data = new byte[length];
+            synchronized (sourceLock) {
+                int read = 0;
+                while (read < length) {
+                    final int n = source.readAt(start + read, data, read, length - read);
+                    if (n < 0) {
+                        throw new EOFException("data source shorter than its reported size");
+                    }
+                    read += n;
+                }
+            }
+            result = new byte[(int) (fetch.last - fetch.first + 1)][];
+            for (int i = 0; i < result.length; i++) {
+                final int from = i * BLOCK_SIZE;
+                final int to = Math.min(length, from + BLOCK_SIZE);
+                result[i] = new byte[to - from];
+                System.arraycopy(data, from, result[i], 0, result[i].length);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // Still wakes up the readers waiting for the fetch
+            error = new IOException(e);
+        }
+
+        synchronized (this) {
+            for (long index = fetch.first; index <= fetch.last; index++) {
+                if (fetches.get(index) == fetch) {
+                    fetches.remove(index);
+                    if (result != null) {
+                        blocks.put(index, result[(int) (index - fetch.first)]);
+                    }
+                }
+            }
+        }
+        fetch.blocks = result;
+        fetch.error = error;
+        fetch.done.countDown();
+    }
+
+    boolean wraps(PdfDataSource source) {
+        return this.source == source;
+    }
+
+    // Fetches under way finish, but their blocks are not kept
+    synchronized void clear() {
+        blocks.clear();
+        fetches.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        clear();
+        synchronized (sourceLock) {
+            source.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package app.grapheneos.pdfviewer;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -14,9 +15,12 @@ import android.view.View;
 class GestureHelper {
     public interface GestureListener {
         boolean onTapUp();
-        // Can be replaced with ratio when supported
-        void onZoomIn(float value);
-        void onZoomOut(float value);
+        // The finger started moving sideways, towards the next page for a direction of 1
+        void onSwipeBegin(int direction);
+        boolean onFling(float velocityX, float velocityY);
+        void onZoomBegin(float focusX, float focusY);
+        // scale is relative to the start of the gesture. Called at most once per frame.
+        void onZoom(float scale, float focusX, float focusY);
         void onZoomEnd();
     }
 
@@ -25,50 +29,97 @@ class GestureHelper {
 
         final GestureDetector detector = new GestureDetector(context,
                 new GestureDetector.SimpleOnGestureListener() {
+                    boolean swipeReported;
+
+                    @Override
+                    public boolean onDown(MotionEvent motionEvent) {
+                        swipeReported = false;
+                        return false;
+                    }
+
                     @Override
                     public boolean onSingleTapUp(MotionEvent motionEvent) {
                         return listener.onTapUp();
                     }
+
+                    @Override
+                    public boolean onScroll(MotionEvent start, MotionEvent motionEvent,
+                            float distanceX, float distanceY) {
+                        if (!swipeReported && motionEvent.getPointerCount() == 1
+                                && Math.abs(distanceX) > Math.abs(distanceY)) {
+                            swipeReported = true;
+                            listener.onSwipeBegin(distanceX > 0 ? 1 : -1);
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onFling(MotionEvent start, MotionEvent motionEvent,
+                            float velocityX, float velocityY) {
+                        if (motionEvent.getPointerCount() != 1) {
+                            return false;
+                        }
+                        return listener.onFling(velocityX, velocityY);
+                    }
                 });
 
         final ScaleGestureDetector scaleDetector = new ScaleGestureDetector(context,
                 new ScaleGestureDetector.SimpleOnScaleGestureListener() {
-                    final float SPAN_RATIO = 600;
                     float initialSpan;
-                    float prevNbStep;
+                    float scale;
+                    float focusX;
+                    float focusY;
+                    boolean frameScheduled;
+                    // Touch events arrive faster than frames are drawn, so the latest
+                    // scale is only reported once per frame
+                    final Choreographer choreographer = Choreographer.getInstance();
+                    final Choreographer.FrameCallback frameCallback = frameTimeNanos -> {
+                        frameScheduled = false;
+                        listener.onZoom(scale, focusX, focusY);
+                    };
 
                     @Override
                     public boolean onScaleBegin(ScaleGestureDetector detector) {
                         initialSpan = detector.getCurrentSpan();
-                        prevNbStep = 0;
+                        scale = 1;
+                        focusX = detector.getFocusX();
+                        focusY = detector.getFocusY();
+                        listener.onZoomBegin(focusX, focusY);
                         return true;
                     }
 
                     @Override
                     public boolean onScale(ScaleGestureDetector detector) {
-                        float spanDiff = initialSpan - detector.getCurrentSpan();
-                        float curNbStep = spanDiff / SPAN_RATIO;
-
-                        float stepDiff = curNbStep - prevNbStep;
-                        if (stepDiff > 0) {
-                            listener.onZoomOut(stepDiff);
-                        } else {
-                            listener.onZoomIn(Math.abs(stepDiff));
+                        scale = detector.getCurrentSpan() / initialSpan;
+                        focusX = detector.getFocusX();
+                        focusY = detector.getFocusY();
+                        if (!frameScheduled) {
+                            frameScheduled = true;
+                            choreographer.postFrameCallback(frameCallback);
                         }
-                        prevNbStep = curNbStep;
-
                         return true;
                     }
 
                     @Override
                     public void onScaleEnd(ScaleGestureDetector detector) {
+                        if (frameScheduled) {
+                            frameScheduled = false;
+                            choreographer.removeFrameCallback(frameCallback);
+                        }
+                        listener.onZoom(scale, focusX, focusY);
                         listener.onZoomEnd();
                     }
                 });
 
         gestureView.setOnTouchListener((view, motionEvent) -> {
-            detector.onTouchEvent(motionEvent);
-            scaleDetector.onTouchEvent(motionEvent);
+            // The view is scaled while pinching, so events are mapped back to where they
+            // would be without the transform. Otherwise the span would shrink as the
+            // view grows.
+            final MotionEvent event = MotionEvent.obtain(motionEvent);
+            event.transform(view.getMatrix());
+            detector.onTouchEvent(event);
+            scaleDetector.onTouchEvent(event);
+            event.recycle();
             return false;
         });
     }
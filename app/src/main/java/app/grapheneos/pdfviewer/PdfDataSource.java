@@ -0,0 +1,27 @@
+package app.grapheneos.pdfviewer;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+    Random access to the bytes of a document, so that a host app can serve a PDF
+    without holding (or decrypting) the whole file in memory. The WebView reads from
+    several threads. PdfViewer and PdfRasterizer put a cache that serializes the calls
+    in front of the sources passed to them. The in-memory source behind their
+    ByteArrayInputStream entry points is read directly and serializes the reads on the
+    stream instead.
+
+    Passing a source to PdfViewer.loadPdf or PdfRasterizer.rasterize hands it over:
+    the receiver closes it once it no longer needs it, and the caller must not.
+*/
+
+public interface PdfDataSource extends Closeable {
+    // Total size of the document in bytes
+    long getSize() throws IOException;
+
+    // Read up to size bytes starting at position into buffer at offset. Returns the
+    // number of bytes read, or -1 when position is at or past the end of the document.
+    int readAt(long position, @NonNull byte[] buffer, int offset, int size) throws IOException;
+}
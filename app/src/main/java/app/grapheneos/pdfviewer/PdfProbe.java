@@ -0,0 +1,888 @@
+package app.grapheneos.pdfviewer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+    Reads the document information, page count and whether the document is encrypted
+    straight from the file, without waiting for pdf.js: the header, the trailer reached through startxref
+    at the end of the file, and the few objects it points to. Classic cross-reference
+    tables and cross-reference streams are understood, including objects stored in
+    object streams. Anything else makes the probe fail, leaving the work to pdf.js.
+*/
+
+final class PdfProbe {
+    static final class Result {
+        // Version from the header, such as "1.7"
+        final String version;
+        // -1 when the page tree could not be read
+        final int pageCount;
+        // Whether the trailer has an encryption dictionary. Many encrypted documents open
+        // without a password, so pdf.js decides whether to ask for one.
+        final boolean encrypted;
+        // Text entries of the document information dictionary, or null when the
+        // document is encrypted or has none
+        final Map<String, String> info;
+
+        Result(String version, int pageCount, boolean encrypted, Map<String, String> info) {
+            this.version = version;
+            this.pageCount = pageCount;
+            this.encrypted = encrypted;
+            this.info = info;
+        }
+    }
+
+    private static final int HEADER_SIZE = 1024;
+    private static final int TAIL_SIZE = 1024;
+    private static final int XREF_ENTRY_SIZE = 20;
+    private static final int MAX_XREF_SECTIONS = 32;
+    private static final int MAX_RESOLVE_DEPTH = 8;
+    // Bound on arrays and dictionaries nested in one another
+    private static final int MAX_NESTING_DEPTH = 64;
+    // Bound on decompressed cross-reference and object streams
+    private static final int MAX_STREAM_SIZE = 16 * 1024 * 1024;
+
+    // PDFDocEncoding differs from Latin-1 in 0x18-0x1f and 0x80-0xa0
+    private static final char[] PDF_DOC_ENCODING_LOW = {
+        '\u02d8', '\u02c7', '\u02c6', '\u02d9', '\u02dd', '\u02db', '\u02da', '\u02dc'
+    };
+    private static final char[] PDF_DOC_ENCODING_HIGH = {
+        '\u2022', '\u2020', '\u2021', '\u2026', '\u2014', '\u2013', '\u0192', '\u2044',
+        '\u2039', '\u203a', '\u2212', '\u2030', '\u201e', '\u201c', '\u201d', '\u2018',
+        '\u2019', '\u201a', '\u2122', '\ufb01', '\ufb02', '\u0141', '\u0152', '\u0160',
+        '\u0178', '\u017d', '\u0131', '\u0142', '\u0153', '\u0161', '\u017e', '\ufffd',
+        '\u20ac'
+    };
+
+    private static final class Name {
+        final String value;
+
+        Name(String value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Ref {
+        final int number;
+
+        Ref(int number) {
+            this.number = number;
+        }
+    }
+
+    private static final class Stream {
+        final Map<String, Object> dictionary;
+        final PdfDataSource source;
+        final long dataOffset;
+
+        Stream(Map<String, Object> dictionary, PdfDataSource source, long dataOffset) {
+            this.dictionary = dictionary;
+            this.source = source;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    // Where an object lives: type 1 at an offset in the file, type 2 at an index in an
+    // object stream, type 0 free
+    private static final class Entry {
+        final int type;
+        final long field2;
+        final long field3;
+
+        Entry(int type, long field2, long field3) {
+            this.type = type;
+            this.field2 = field2;
+            this.field3 = field3;
+        }
+    }
+
+    private interface XrefSection {
+        // Null when the section does not cover the object
+        @Nullable
+        Entry find(int number) throws IOException;
+    }
+
+    private final PdfDataSource source;
+    private final long size;
+    private final List<XrefSection> sections = new ArrayList<>();
+    private final Map<Integer, byte[]> objectStreams = new HashMap<>();
+    // Objects being loaded, so that an object stream containing itself fails instead of
+    // recursing
+    private final Set<Integer> loading = new HashSet<>();
+
+    private PdfProbe(PdfDataSource source) throws IOException {
+        this.source = source;
+        size = source.getSize();
+    }
+
+    @NonNull
+    static Result probe(@NonNull PdfDataSource source) throws IOException {
+        return new PdfProbe(source).run();
+    }
+
+    private Result run() throws IOException {
+        final String version = readVersion();
+        final Map<String, Object> trailer = readXrefSections(readStartXref());
+
+        final boolean encrypted = trailer.containsKey("Encrypt");
+        int pageCount = -1;
+        try {
+            final Map<String, Object> root = asDictionary(resolve(trailer.get("Root"), 0));
+            final Map<String, Object> pages = asDictionary(resolve(root.get("Pages"), 0));
+            final Object count = resolve(pages.get("Count"), 0);
+            if (count instanceof Long && (Long) count >= 0 && (Long) count <= Integer.MAX_VALUE) {
+                pageCount = (int) (long) (Long) count;
+            }
+        } catch (IOException e) {
+            // Objects in object streams of encrypted documents cannot be read, and a
+            // broken page tree is left for pdf.js to recover
+        }
+
+        Map<String, String> info = null;
+        // Strings of encrypted documents are encrypted too
+        if (!encrypted && trailer.get("Info") != null) {
+            final Map<String, Object> dictionary = asDictionary(resolve(trailer.get("Info"), 0));
+            info = new HashMap<>();
+            for (final Map.Entry<String, Object> entry : dictionary.entrySet()) {
+                final Object value = resolve(entry.getValue(), 0);
+                if (value instanceof byte[]) {
+                    info.put(entry.getKey(), decodeTextString((byte[]) value));
+                }
+            }
+        }
+        return new Result(version, pageCount, encrypted, info);
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        final byte[] buffer = new byte[length];
+        int done = 0;
+        while (done < length) {
+            final int read = source.readAt(position + done, buffer, done, length - done);
+            if (read <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            done += read;
+        }
+        return buffer;
+    }
+
+    private String readVersion() throws IOException {
+        final byte[] header = read(0, (int) Math.min(size, HEADER_SIZE));
+        final String text = new String(header, StandardCharsets.ISO_8859_1);
+        final int start = text.indexOf("%PDF-");
+        if (start == -1) {
+            throw new IOException("No PDF header");
+        }
+        int end = start + 5;
+        while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '.')) {
+            end++;
+        }
+        return text.substring(start + 5, end);
+    }
+
+    private long readStartXref() throws IOException {
+        final long tailStart = Math.max(0, size - TAIL_SIZE);
+        final byte[] tail = read(tailStart, (int) (size - tailStart));
+        final String text = new String(tail, StandardCharsets.ISO_8859_1);
+        final int keyword = text.lastIndexOf("startxref");
+        if (keyword == -1) {
+            throw new IOException("No startxref");
+        }
+        final Lexer lexer = new Lexer(source, tailStart + keyword + "startxref".length());
+        final Object offset = lexer.nextToken();
+        if (!(offset instanceof Long) || (Long) offset < 0 || (Long) offset >= size) {
+            throw new IOException("Invalid startxref");
+        }
+        return (Long) offset;
+    }
+
+    // Read the chain of cross-reference sections from the newest one, returning the
+    // newest trailer
+    private Map<String, Object> readXrefSections(long offset) throws IOException {
+        Map<String, Object> newestTrailer = null;
+        final Set<Long> visited = new HashSet<>();
+        while (offset >= 0 && sections.size() < MAX_XREF_SECTIONS && visited.add(offset)) {
+            final Lexer lexer = new Lexer(source, offset);
+            final Map<String, Object> trailer;
+            if ("xref".equals(lexer.nextToken())) {
+                trailer = readXrefTable(lexer);
+                // Hybrid files list objects in object streams in a separate stream
+                final Object xrefStream = trailer.get("XRefStm");
+                if (xrefStream instanceof Long && visited.add((Long) xrefStream)) {
+                    readXrefStream((Long) xrefStream);
+                }
+            } else {
+                trailer = readXrefStream(offset);
+            }
+            if (newestTrailer == null) {
+                newestTrailer = trailer;
+            }
+            final Object previous = trailer.get("Prev");
+            offset = previous instanceof Long ? (Long) previous : -1;
+        }
+        if (newestTrailer == null) {
+            throw new IOException("No trailer");
+        }
+        return newestTrailer;
+    }
+
+    // Entries have a fixed size, so only subsection headers are read here and entries
+    // are read when looked up
+    private Map<String, Object> readXrefTable(Lexer lexer) throws IOException {
+        final List<long[]> subsections = new ArrayList<>();
+        while (true) {
+            final Object token = lexer.nextToken();
+            if ("trailer".equals(token)) {
+                break;
+            }
+            final Object count = lexer.nextToken();
+            if (!(token instanceof Long) || !(count instanceof Long)) {
+                throw new IOException("Invalid xref subsection");
+            }
+            lexer.skipWhitespace();
+            final long base = lexer.getPosition();
+            subsections.add(new long[]{(Long) token, (Long) count, base});
+            lexer.seek(base + (Long) count * XREF_ENTRY_SIZE);
+        }
+        sections.add(number -> {
+            for (final long[] subsection : subsections) {
+                if (number >= subsection[0] && number < subsection[0] + subsection[1]) {
+                    return readXrefEntry(subsection[2] + (number - subsection[0]) * XREF_ENTRY_SIZE);
+                }
+            }
+            return null;
+        });
+        return asDictionary(lexer.parseObject());
+    }
+
+    private Entry readXrefEntry(long position) throws IOException {
+        final byte[] entry = read(position, 18);
+        long offset = 0;
+        for (int i = 0; i < 10; i++) {
+            if (entry[i] < '0' || entry[i] > '9') {
+                throw new IOException("Invalid xref entry");
+            }
+            offset = offset * 10 + (entry[i] - '0');
+        }
+        if (entry[17] == 'n') {
+            return new Entry(1, offset, 0);
+        } else if (entry[17] == 'f') {
+            return new Entry(0, 0, 0);
+        }
+        throw new IOException("Invalid xref entry");
+    }
+
+    private Map<String, Object> readXrefStream(long offset) throws IOException {
+        final Object object = readObjectAt(offset);
+        if (!(object instanceof Stream)) {
+            throw new IOException("Invalid xref stream");
+        }
+        final Stream stream = (Stream) object;
+        final byte[] data = decodeStream(stream, 0);
+
+        final List<?> widths = asList(stream.dictionary.get("W"));
+        if (widths.size() != 3) {
+            throw new IOException("Invalid xref stream widths");
+        }
+        final int[] w = new int[3];
+        for (int i = 0; i < 3; i++) {
+            w[i] = (int) asLong(widths.get(i));
+            if (w[i] < 0 || w[i] > 8) {
+                throw new IOException("Invalid xref stream widths");
+            }
+        }
+        final int rowSize = w[0] + w[1] + w[2];
+
+        final long[] index;
+        final Object indexObject = stream.dictionary.get("Index");
+        if (indexObject != null) {
+            final List<?> list = asList(indexObject);
+            index = new long[list.size()];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = asLong(list.get(i));
+            }
+        } else {
+            index = new long[]{0, asLong(stream.dictionary.get("Size"))};
+        }
+
+        sections.add(number -> {
+            long row = 0;
+            for (int i = 0; i + 1 < index.length; i += 2) {
+                if (number >= index[i] && number < index[i] + index[i + 1]) {
+                    final long start = (row + number - index[i]) * rowSize;
+                    if (start + rowSize > data.length) {
+                        return null;
+                    }
+                    final int position = (int) start;
+                    // The type defaults to 1 when its field is omitted
+                    final long type = w[0] == 0 ? 1 : readField(data, position, w[0]);
+                    return new Entry((int) type, readField(data, position + w[0], w[1]),
+                            readField(data, position + w[0] + w[1], w[2]));
+                }
+                row += index[i + 1];
+            }
+            return null;
+        });
+        return stream.dictionary;
+    }
+
+    private static long readField(byte[] data, int position, int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (data[position + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Nullable
+    private Entry findEntry(int number) throws IOException {
+        for (final XrefSection section : sections) {
+            final Entry entry = section.find(number);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Reads "n g obj" followed by an object, which is returned as a Stream when a stream
+    // follows its dictionary
+    private Object readObjectAt(long offset) throws IOException {
+        final Lexer lexer = new Lexer(source, offset);
+        if (!(lexer.nextToken() instanceof Long) || !(lexer.nextToken() instanceof Long) ||
+                !"obj".equals(lexer.nextToken())) {
+            throw new IOException("Invalid object at " + offset);
+        }
+        final Object object = lexer.parseObject();
+        if (object instanceof Map) {
+            final long afterDictionary = lexer.getPosition();
+            if ("stream".equals(lexer.nextToken())) {
+                // The keyword is followed by CRLF or LF before the data
+                if (lexer.peekByte() == '\r') {
+                    lexer.readByte();
+                }
+                if (lexer.peekByte() == '\n') {
+                    lexer.readByte();
+                }
+                return new Stream(asDictionary(object), source, lexer.getPosition());
+            }
+            lexer.seek(afterDictionary);
+        }
+        return object;
+    }
+
+    private Object loadObject(int number, int depth) throws IOException {
+        if (depth > MAX_RESOLVE_DEPTH) {
+            throw new IOException("Reference chain too long");
+        }
+        if (!loading.add(number)) {
+            throw new IOException("Reference cycle at object " + number);
+        }
+        try {
+            return loadEntry(number, depth);
+        } finally {
+            loading.remove(number);
+        }
+    }
+
+    private Object loadEntry(int number, int depth) throws IOException {
+        final Entry entry = findEntry(number);
+        if (entry == null || entry.type == 0) {
+            return null;
+        }
+        if (entry.type == 1) {
+            return readObjectAt(entry.field2);
+        }
+        if (entry.type != 2) {
+            throw new IOException("Unknown xref entry type " + entry.type);
+        }
+
+        final int streamNumber = (int) entry.field2;
+        byte[] data = objectStreams.get(streamNumber);
+        final Object streamObject = loadObject(streamNumber, depth + 1);
+        if (!(streamObject instanceof Stream)) {
+            throw new IOException("Invalid object stream " + streamNumber);
+        }
+        final Stream stream = (Stream) streamObject;
+        if (data == null) {
+            data = decodeStream(stream, depth);
+            objectStreams.put(streamNumber, data);
+        }
+
+        final long first = asLong(stream.dictionary.get("First"));
+        final long count = asLong(stream.dictionary.get("N"));
+        final PdfDataSource dataSource = new ByteArrayDataSource(new ByteArrayInputStream(data));
+        final Lexer header = new Lexer(dataSource, 0);
+        for (long i = 0; i < count; i++) {
+            final long objectNumber = asLong(header.nextToken());
+            final long offset = asLong(header.nextToken());
+            if (objectNumber == number) {
+                return new Lexer(dataSource, first + offset).parseObject();
+            }
+        }
+        throw new IOException("Object " + number + " missing from object stream");
+    }
+
+    private Object resolve(Object value, int depth) throws IOException {
+        while (value instanceof Ref) {
+            if (depth++ > MAX_RESOLVE_DEPTH) {
+                throw new IOException("Reference chain too long");
+            }
+            value = loadObject(((Ref) value).number, depth);
+        }
+        return value;
+    }
+
+    private byte[] decodeStream(Stream stream, int depth) throws IOException {
+        final long length = asLong(resolve(stream.dictionary.get("Length"), depth + 1));
+        if (length < 0 || length > MAX_STREAM_SIZE) {
+            throw new IOException("Invalid stream length");
+        }
+        final byte[] raw = new byte[(int) length];
+        int done = 0;
+        while (done < raw.length) {
+            final int read = stream.source.readAt(stream.dataOffset + done, raw, done, raw.length - done);
+            if (read <= 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            done += read;
+        }
+
+        Object filter = stream.dictionary.get("Filter");
+        Object parameters = stream.dictionary.get("DecodeParms");
+        if (filter instanceof List && ((List<?>) filter).size() == 1) {
+            filter = ((List<?>) filter).get(0);
+            if (parameters instanceof List && ((List<?>) parameters).size() == 1) {
+                parameters = ((List<?>) parameters).get(0);
+            }
+        }
+        if (filter == null) {
+            return raw;
+        }
+        if (!(filter instanceof Name) || !"FlateDecode".equals(((Name) filter).value)) {
+            throw new IOException("Unsupported stream filter");
+        }
+        final byte[] inflated = inflate(raw);
+        if (parameters instanceof Map) {
+            final Map<String, Object> map = asDictionary(parameters);
+            final Object predictor = map.get("Predictor");
+            if (predictor instanceof Long && (Long) predictor >= 10) {
+                final Object columns = map.get("Columns");
+                return unpredict(inflated, columns instanceof Long ? (int) (long) (Long) columns : 1);
+            } else if (predictor instanceof Long && (Long) predictor != 1) {
+                throw new IOException("Unsupported predictor");
+            }
+        }
+        return inflated;
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                output.write(buffer, 0, inflated);
+                if (output.size() > MAX_STREAM_SIZE) {
+                    throw new IOException("Stream too large");
+                }
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Undo PNG predictors, where every row starts with the filter type used for it
+    private static byte[] unpredict(byte[] data, int columns) throws IOException {
+        final int rowSize = columns + 1;
+        final int rows = data.length / rowSize;
+        final byte[] output = new byte[rows * columns];
+        for (int row = 0; row < rows; row++) {
+            final int type = data[row * rowSize];
+            for (int column = 0; column < columns; column++) {
+                final int value = data[row * rowSize + 1 + column] & 0xff;
+                final int left = column > 0 ? output[row * columns + column - 1] & 0xff : 0;
+                final int up = row > 0 ? output[(row - 1) * columns + column] & 0xff : 0;
+                final int upLeft = row > 0 && column > 0 ? output[(row - 1) * columns + column - 1] & 0xff : 0;
+                final int predicted;
+                switch (type) {
+                    case 0:
+                        predicted = 0;
+                        break;
+                    case 1:
+                        predicted = left;
+                        break;
+                    case 2:
+                        predicted = up;
+                        break;
+                    case 3:
+                        predicted = (left + up) / 2;
+                        break;
+                    case 4: {
+                        final int p = left + up - upLeft;
+                        final int pa = Math.abs(p - left);
+                        final int pb = Math.abs(p - up);
+                        final int pc = Math.abs(p - upLeft);
+                        predicted = pa <= pb && pa <= pc ? left : pb <= pc ? up : upLeft;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Invalid PNG predictor " + type);
+                }
+                output[row * columns + column] = (byte) (value + predicted);
+            }
+        }
+        return output;
+    }
+
+    static String decodeTextString(byte[] bytes) {
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xfe && (bytes[1] & 0xff) == 0xff) {
+            return new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_16BE);
+        }
+        if (bytes.length >= 3 && (bytes[0] & 0xff) == 0xef && (bytes[1] & 0xff) == 0xbb &&
+                (bytes[2] & 0xff) == 0xbf) {
+            return new String(bytes, 3, bytes.length - 3, StandardCharsets.UTF_8);
+        }
+        final StringBuilder builder = new StringBuilder(bytes.length);
+        for (final byte b : bytes) {
+            final int c = b & 0xff;
+            if (c >= 0x18 && c <= 0x1f) {
+                builder.append(PDF_DOC_ENCODING_LOW[c - 0x18]);
+            } else if (c >= 0x80 && c <= 0xa0) {
+                builder.append(PDF_DOC_ENCODING_HIGH[c - 0x80]);
+            } else {
+                builder.append((char) c);
+            }
+        }
+        return builder.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asDictionary(Object object) throws IOException {
+        if (!(object instanceof Map)) {
+            throw new IOException("Expected dictionary");
+        }
+        return (Map<String, Object>) object;
+    }
+
+    private static List<?> asList(Object object) throws IOException {
+        if (!(object instanceof List)) {
+            throw new IOException("Expected array");
+        }
+        return (List<?>) object;
+    }
+
+    private static long asLong(Object object) throws IOException {
+        if (!(object instanceof Long)) {
+            throw new IOException("Expected integer");
+        }
+        return (Long) object;
+    }
+
+    // Tokenizer over a data source, buffering reads. Tokens are Long and Double for
+    // numbers, Name for names, byte[] for strings and String for keywords and the
+    // delimiters "<<", ">>", "[" and "]".
+    private static final class Lexer {
+        private static final int BUFFER_SIZE = 4096;
+
+        private final PdfDataSource source;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long bufferStart;
+        private int bufferLength;
+        private long position;
+
+        Lexer(PdfDataSource source, long position) {
+            this.source = source;
+            this.position = position;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        void seek(long position) {
+            this.position = position;
+        }
+
+        int peekByte() throws IOException {
+            if (position < bufferStart || position >= bufferStart + bufferLength) {
+                bufferStart = position;
+                bufferLength = Math.max(0, source.readAt(position, buffer, 0, BUFFER_SIZE));
+                if (bufferLength == 0) {
+                    return -1;
+                }
+            }
+            return buffer[(int) (position - bufferStart)] & 0xff;
+        }
+
+        int readByte() throws IOException {
+            final int b = peekByte();
+            if (b != -1) {
+                position++;
+            }
+            return b;
+        }
+
+        private static boolean isWhitespace(int b) {
+            return b == 0 || b == '\t' || b == '\n' || b == '\f' || b == '\r' || b == ' ';
+        }
+
+        private static boolean isDelimiter(int b) {
+            return b == '(' || b == ')' || b == '<' || b == '>' || b == '[' || b == ']' ||
+                    b == '{' || b == '}' || b == '/' || b == '%';
+        }
+
+        void skipWhitespace() throws IOException {
+            while (true) {
+                final int b = peekByte();
+                if (isWhitespace(b)) {
+                    position++;
+                } else if (b == '%') {
+                    while (true) {
+                        final int c = readByte();
+                        if (c == -1 || c == '\n' || c == '\r') {
+                            break;
+                        }
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        Object nextToken() throws IOException {
+            skipWhitespace();
+            final int b = readByte();
+            switch (b) {
+                case -1:
+                    throw new IOException("Unexpected end of data");
+                case '/':
+                    return new Name(readRegular());
+                case '(':
+                    return readLiteralString();
+                case '<':
+                    if (peekByte() == '<') {
+                        position++;
+                        return "<<";
+                    }
+                    return readHexString();
+                case '>':
+                    if (readByte() != '>') {
+                        throw new IOException("Unexpected >");
+                    }
+                    return ">>";
+                case '[':
+                    return "[";
+                case ']':
+                    return "]";
+                default:
+                    position--;
+                    final String regular = readRegular();
+                    if (regular.isEmpty()) {
+                        throw new IOException("Unexpected delimiter");
+                    }
+                    return parseNumber(regular);
+            }
+        }
+
+        private String readRegular() throws IOException {
+            final StringBuilder builder = new StringBuilder();
+            while (true) {
+                final int b = peekByte();
+                if (b == -1 || isWhitespace(b) || isDelimiter(b)) {
+                    return builder.toString();
+                }
+                builder.append((char) b);
+                position++;
+            }
+        }
+
+        // Keywords are returned as they are
+        private static Object parseNumber(String token) {
+            final char first = token.charAt(0);
+            if (!(first >= '0' && first <= '9') && first != '-' && first != '+' && first != '.') {
+                return token;
+            }
+            try {
+                if (token.indexOf('.') == -1) {
+                    return Long.parseLong(token);
+                }
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                return token;
+            }
+        }
+
+        private byte[] readLiteralString() throws IOException {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int depth = 1;
+            while (true) {
+                int b = readByte();
+                switch (b) {
+                    case -1:
+                        throw new IOException("Unterminated string");
+                    case '(':
+                        depth++;
+                        break;
+                    case ')':
+                        if (--depth == 0) {
+                            return output.toByteArray();
+                        }
+                        break;
+                    case '\\':
+                        b = readByte();
+                        switch (b) {
+                            case 'n':
+                                b = '\n';
+                                break;
+                            case 'r':
+                                b = '\r';
+                                break;
+                            case 't':
+                                b = '\t';
+                                break;
+                            case 'b':
+                                b = '\b';
+                                break;
+                            case 'f':
+                                b = '\f';
+                                break;
+                            case '\r':
+                                // Line continuation
+                                if (peekByte() == '\n') {
+                                    position++;
+                                }
+                                continue;
+                            case '\n':
+                                continue;
+                            default:
+                                if (b >= '0' && b <= '7') {
+                                    int value = b - '0';
+                                    for (int i = 0; i < 2 && peekByte() >= '0' && peekByte() <= '7'; i++) {
+                                        value = value * 8 + (readByte() - '0');
+                                    }
+                                    b = value & 0xff;
+                                } else if (b == -1) {
+                                    throw new IOException("Unterminated string");
+                                }
+                                break;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                output.write(b);
+            }
+        }
+
+        private byte[] readHexString() throws IOException {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int high = -1;
+            while (true) {
+                final int b = readByte();
+                if (b == '>') {
+                    if (high != -1) {
+                        output.write(high << 4);
+                    }
+                    return output.toByteArray();
+                }
+                if (b == -1) {
+                    throw new IOException("Unterminated hex string");
+                }
+                if (isWhitespace(b)) {
+                    continue;
+                }
+                final int digit = Character.digit(b, 16);
+                if (digit == -1) {
+                    throw new IOException("Invalid hex string");
+                }
+                if (high == -1) {
+                    high = digit;
+                } else {
+                    output.write((high << 4) | digit);
+                    high = -1;
+                }
+            }
+        }
+
+        // Parse an object, turning "n g R" into a Ref
+        Object parseObject() throws IOException {
+            return parseObject(0);
+        }
+
+        private Object parseObject(int depth) throws IOException {
+            if (depth > MAX_NESTING_DEPTH) {
+                throw new IOException("Objects nested too deeply");
+            }
+            final Object token = nextToken();
+            if ("<<".equals(token)) {
+                final Map<String, Object> dictionary = new HashMap<>();
+                while (true) {
+                    final Object key = nextToken();
+                    if (">>".equals(key)) {
+                        return dictionary;
+                    }
+                    if (!(key instanceof Name)) {
+                        throw new IOException("Expected name as dictionary key");
+                    }
+                    dictionary.put(((Name) key).value, parseObject(depth + 1));
+                }
+            }
+            if ("[".equals(token)) {
+                final List<Object> list = new ArrayList<>();
+                while (true) {
+                    skipWhitespace();
+                    if (peekByte() == ']') {
+                        position++;
+                        return list;
+                    }
+                    list.add(parseObject(depth + 1));
+                }
+            }
+            if (token instanceof Long) {
+                final long afterNumber = position;
+                try {
+                    final Object generation = nextToken();
+                    if (generation instanceof Long && "R".equals(nextToken())) {
+                        return new Ref((int) (long) (Long) token);
+                    }
+                } catch (IOException e) {
+                    // Not a reference
+                }
+                position = afterNumber;
+                return token;
+            }
+            if ("true".equals(token)) {
+                return Boolean.TRUE;
+            }
+            if ("false".equals(token)) {
+                return Boolean.FALSE;
+            }
+            if ("null".equals(token)) {
+                return null;
+            }
+            return token;
+        }
+    }
+}
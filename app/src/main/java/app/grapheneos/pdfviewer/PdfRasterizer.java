@@ -0,0 +1,334 @@
+package app.grapheneos.pdfviewer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Renders pages to PNG images without showing a viewer, for thumbnails in a file
+    listing for example. Requests for any number of documents go one page at a time
+    through a single off-screen WebView, which loads the viewer assets and pdf.js once.
+    The page draws on the render worker, since the WebView is never attached to a
+    window, and commands and results go over a message port, which needs Android 6.0.
+    The last document stays open between requests, so a batch of pages from one
+    document parses it only once. Call every method on the main thread.
+*/
+
+public final class PdfRasterizer {
+    public interface Callback {
+        void onRasterized(@NonNull Result result);
+    }
+
+    public static final class Result {
+        public final int pageNumber;
+        // PNG of the page, or null when it could not be rendered
+        @Nullable
+        public final byte[] png;
+        @Nullable
+        public final String error;
+        // Milliseconds spent waiting behind earlier requests, drawing the page, and from
+        // the request to the result, which includes opening the document when the
+        // previous request was for another one
+        public final long queueMs;
+        public final long renderMs;
+        public final long totalMs;
+
+        Result(int pageNumber, @Nullable byte[] png, @Nullable String error, long queueMs,
+                long renderMs, long totalMs) {
+            this.pageNumber = pageNumber;
+            this.png = png;
+            this.error = error;
+            this.queueMs = queueMs;
+            this.renderMs = renderMs;
+            this.totalMs = totalMs;
+        }
+
+        @Nullable
+        public Bitmap decodeBitmap() {
+            return png != null ? BitmapFactory.decodeByteArray(png, 0, png.length) : null;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "page " + pageNumber + (error != null ? ", error " + error : "") +
+                ", queue " + queueMs + " ms, render " + renderMs + " ms, total " + totalMs + " ms";
+        }
+    }
+
+    private static final class Request {
+        final int id;
+        final int documentId;
+        final int pageNumber;
+        final int widthPx;
+        final int heightPx;
+        final Callback callback;
+        final long submitTime = SystemClock.elapsedRealtime();
+        long startTime;
+        Runnable timeout;
+
+        Request(int id, int documentId, int pageNumber, int widthPx, int heightPx, Callback callback) {
+            this.id = id;
+            this.documentId = documentId;
+            this.pageNumber = pageNumber;
+            this.widthPx = widthPx;
+            this.heightPx = heightPx;
+            this.callback = callback;
+        }
+    }
+
+    private static final String PAGE_URL = "https://localhost/viewer/raster.html";
+    // The query keeps documents apart while staying within the connect-src of the pages
+    private static final String DOCUMENT_URL = "https://localhost/placeholder.pdf?document=";
+    private static final int DATA_SOURCE_CACHE_BYTES = 1024 * 1024;
+    // A page that takes longer fails, so that it cannot hold up the requests behind it
+    private static final long TIMEOUT_MS = 15000;
+
+    private static final String RASTERIZE = "rasterize";
+    private static final String CANCEL = "cancel";
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final WebView webView;
+    private final ViewerCommandChannel commands;
+    // Copies the PNG out of the replies away from the main thread
+    private final ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    // Read by the WebView threads serving document requests
+    private final Map<Integer, PdfDataSource> documents = new ConcurrentHashMap<>();
+    private Request running;
+    private PdfDataSource lastSource;
+    private ByteArrayInputStream lastInputStream;
+    private PdfDataSource lastInputStreamSource;
+    private int lastDocumentId;
+    private int nextId = 1;
+    private boolean pageLoaded;
+    private boolean closed;
+
+    // Commands need a message port to get the pages back
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    // Throws UnsupportedOperationException unless isSupported()
+    public PdfRasterizer(@NonNull Context context) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("rasterizing needs Android 6.0 or later");
+        }
+        final Context appContext = context.getApplicationContext();
+        webView = new WebView(appContext);
+        PdfViewer.configureWebView(webView);
+        commands = new ViewerCommandChannel(webView);
+        webView.setWebViewClient(new WebViewClient() {
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                final Uri url = request.getUrl();
+                if (!"GET".equals(request.getMethod()) || !"localhost".equals(url.getHost())) {
+                    return null;
+                }
+                if ("/placeholder.pdf".equals(url.getPath())) {
+                    return serveDocument(url.getQueryParameter("document"),
+                            PdfViewer.getHeader(request, "Range"));
+                }
+                return PdfViewer.serveViewerAsset(appContext, url.getPath());
+            }
+
+            @Override
+            public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+                return true;
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                pageLoaded = true;
+                commands.connect();
+                next();
+            }
+        });
+        webView.loadUrl(PAGE_URL);
+    }
+
+    // Render a page of the document to fit within widthPx by heightPx, keeping its aspect
+    // ratio. The rasterizer takes ownership of dataSource, like PdfViewer.loadPdf does.
+    // Consecutive requests for the same dataSource share the open document. Once another
+    // source is requested, the earlier one is closed after its requests and must not be
+    // passed again.
+    public void rasterize(@NonNull PdfDataSource dataSource, int pageNumber, int widthPx, int heightPx,
+            @NonNull Callback callback) {
+        if (closed) {
+            throw new IllegalStateException("rasterizer is closed");
+        }
+        if (dataSource != lastSource) {
+            final PdfDataSource cached;
+            try {
+                // Documents already in memory are read from directly
+                cached = dataSource instanceof ByteArrayDataSource ? dataSource :
+                        new CachingDataSource(dataSource, DATA_SOURCE_CACHE_BYTES);
+            } catch (IOException e) {
+                closeQuietly(dataSource);
+                final Result result = new Result(pageNumber, null, e.toString(), 0, 0, 0);
+                handler.post(() -> callback.onRasterized(result));
+                return;
+            }
+            lastSource = dataSource;
+            lastDocumentId = nextId++;
+            documents.put(lastDocumentId, cached);
+        }
+        queue.add(new Request(nextId++, lastDocumentId, pageNumber, widthPx, heightPx, callback));
+        next();
+    }
+
+    public void rasterize(@NonNull ByteArrayInputStream inputStream, int pageNumber, int widthPx,
+            int heightPx, @NonNull Callback callback) {
+        if (inputStream != lastInputStream) {
+            lastInputStream = inputStream;
+            lastInputStreamSource = new ByteArrayDataSource(inputStream);
+        }
+        rasterize(lastInputStreamSource, pageNumber, widthPx, heightPx, callback);
+    }
+
+    // Drop pending requests without calling back and release the WebView
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        running = null;
+        handler.removeCallbacksAndMessages(null);
+        decodeExecutor.shutdownNow();
+        for (final PdfDataSource dataSource : documents.values()) {
+            closeQuietly(dataSource);
+        }
+        documents.clear();
+        lastSource = null;
+        lastInputStream = null;
+        lastInputStreamSource = null;
+        commands.disconnect();
+        webView.destroy();
+    }
+
+    private void next() {
+        if (closed || !pageLoaded || running != null || queue.isEmpty()) {
+            return;
+        }
+        final Request request = queue.poll();
+        // Requests run in the order of their documents, so earlier ones are done with
+        final Iterator<Map.Entry<Integer, PdfDataSource>> entries = documents.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Integer, PdfDataSource> entry = entries.next();
+            if (entry.getKey() < request.documentId) {
+                entries.remove();
+                closeQuietly(entry.getValue());
+            }
+        }
+        request.startTime = SystemClock.elapsedRealtime();
+        running = request;
+        request.timeout = () -> {
+            commands.post(CANCEL, "[" + request.id + "]");
+            finish(request.id, null, "timed out after " + TIMEOUT_MS + " ms", 0);
+        };
+        handler.postDelayed(request.timeout, TIMEOUT_MS);
+        commands.request(RASTERIZE, "[" + request.id + ", \"" + DOCUMENT_URL + request.documentId + "\", " +
+                request.pageNumber + ", " + request.widthPx + ", " + request.heightPx + "]",
+                reply -> onReply(request.id, reply));
+    }
+
+    // The reply is {renderMs, error} as JSON, then after a line break the PNG with one
+    // character per byte
+    private void onReply(int id, String reply) {
+        decodeExecutor.execute(() -> {
+            byte[] png = null;
+            String error;
+            double renderMs = 0;
+            final int newline = reply.indexOf('\n');
+            try {
+                final JSONObject result = new JSONObject(newline != -1 ? reply.substring(0, newline) : reply);
+                error = result.optString("error");
+                renderMs = result.optDouble("renderMs", 0);
+                if (error.isEmpty()) {
+                    if (newline == -1) {
+                        throw new JSONException("reply without an image");
+                    }
+                    png = new byte[reply.length() - newline - 1];
+                    for (int i = 0; i < png.length; i++) {
+                        png[i] = (byte) reply.charAt(newline + 1 + i);
+                    }
+                    error = null;
+                }
+            } catch (JSONException e) {
+                error = e.toString();
+            }
+            final byte[] resultPng = png;
+            final String resultError = error;
+            final double resultRenderMs = renderMs;
+            handler.post(() -> finish(id, resultPng, resultError, resultRenderMs));
+        });
+    }
+
+    private void finish(int id, @Nullable byte[] png, String error, double renderMs) {
+        final Request request = running;
+        if (closed || request == null || request.id != id) {
+            return;
+        }
+        running = null;
+        if (request.timeout != null) {
+            handler.removeCallbacks(request.timeout);
+        }
+        final long now = SystemClock.elapsedRealtime();
+        final Result result = new Result(request.pageNumber, png, error, request.startTime - request.submitTime,
+                Math.round(renderMs), now - request.submitTime);
+        Log.d(PdfViewer.TAG, "rasterized " + result);
+        request.callback.onRasterized(result);
+        next();
+    }
+
+    private static void closeQuietly(PdfDataSource dataSource) {
+        try {
+            dataSource.close();
+        } catch (IOException e) {
+            Log.w(PdfViewer.TAG, "failed to close data source", e);
+        }
+    }
+
+    private WebResourceResponse serveDocument(String documentId, String range) {
+        final PdfDataSource dataSource;
+        try {
+            dataSource = documentId != null ? documents.get(Integer.parseInt(documentId)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (dataSource == null) {
+            return null;
+        }
+        try {
+            return PdfViewer.serveDocument(dataSource, dataSource.getSize(), range);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package app.grapheneos.pdfviewer;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.res.ColorStateList;
+import android.content.res.Configuration;
 import android.graphics.Color;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -15,6 +20,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.CookieManager;
 import android.webkit.JavascriptInterface;
+import android.webkit.ValueCallback;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
@@ -26,6 +32,8 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
+import androidx.coordinatorlayout.widget.CoordinatorLayout;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowCompat;
@@ -37,6 +45,10 @@ import androidx.loader.content.Loader;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import app.grapheneos.pdfviewer.databinding.PdfviewerBinding;
 import app.grapheneos.pdfviewer.fragment.DocumentPropertiesFragment;
 import app.grapheneos.pdfviewer.fragment.PasswordPromptFragment;
@@ -52,6 +64,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequence>> {
     public static final String TAG = "PdfViewer";
@@ -101,24 +117,64 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
         "xr-spatial-tracking=()";
 
     private static final float MIN_ZOOM_RATIO = 0.2f;
-    private static final float MAX_ZOOM_RATIO = 1.5f;
+    private static final float MAX_ZOOM_RATIO = 5f;
     private static final int ALPHA_LOW = 130;
     private static final int ALPHA_HIGH = 255;
     private static final int STATE_LOADED = 1;
     private static final int STATE_END = 2;
     private static final int PADDING = 10;
+    private static final int DATA_SOURCE_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int LOW_RAM_DATA_SOURCE_CACHE_BYTES = 2 * 1024 * 1024;
+    // How far beyond the screen pages keep their canvases in continuous scroll mode
+    private static final int CONTINUOUS_SCROLL_MARGIN_DP = 600;
+    private static final int LOW_RAM_CONTINUOUS_SCROLL_MARGIN_DP = 200;
 
     public int mPage;
     public int mNumPages;
-    private float mZoomRatio = 1f;
+    // Written by the viewer when it fits the page to the screen
+    private volatile float mZoomRatio = 1f;
     private int mDocumentOrientationDegrees;
+    private boolean mContinuousScroll;
+    private int mViewStateVersion;
+    private int mPinchTransformVersion;
+    private float mPinchStartZoomRatio;
+    private float mPinchAnchorX;
+    private float mPinchAnchorY;
+    private float mPinchFocusX;
+    private float mPinchFocusY;
     private int mDocumentState;
+    private final int mContinuousScrollMargin;
     private String mEncryptedDocumentPassword;
     private List<CharSequence> mDocumentProperties;
-    private ByteArrayInputStream mInputStream;
+    // Built from the probe result and shown until pdf.js supplies the properties
+    private List<CharSequence> mProbedDocumentProperties;
+    private PdfDataSource mDataSource;
+    // Read from the file while the viewer loads, or null until then and when the
+    // probe failed
+    private volatile PdfProbe.Result mProbeResult;
+    private final ExecutorService mProbeExecutor = Executors.newSingleThreadExecutor();
+    private long mRenderCacheBudget;
+    private volatile RenderCacheStats mRenderCacheStats;
+    private volatile RenderMetrics mRenderMetrics;
+    private RenderMetrics.Listener mRenderMetricsListener;
+    // Find in document. Hits are counted by page as the viewer indexes the text of the
+    // pages, and the selected hit is the index-th one of mFindPage, or none while 0.
+    private String mFindQuery = "";
+    private final TreeMap<Integer, Integer> mFindPageMatches = new TreeMap<>();
+    private int mFindMatchCount;
+    private boolean mFindDone;
+    private int mFindStartPage;
+    private int mFindPage;
+    private int mFindIndex;
+    private MenuItem mFindItem;
+
+    // Off-screen WebView started by prewarm(), only touched on the main thread
+    private static WebView sPrewarmedWebView;
 
     private PdfviewerBinding binding;
+    private ViewerCommandChannel mCommands;
     private TextView mTextView;
+    private TextView mMetricsOverlay;
     private Toast mToast;
 
     AppCompatActivity activity;
@@ -128,40 +184,28 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
     public PasswordStatus passwordValidationViewModel;
 
     private class Channel {
-        @JavascriptInterface
-        public int getPage() {
-            return mPage;
-        }
-
-        @JavascriptInterface
-        public float getZoomRatio() {
-            return mZoomRatio;
-        }
-
         @JavascriptInterface
         public void setZoomRatio(final float ratio) {
             mZoomRatio = Math.max(Math.min(ratio, MAX_ZOOM_RATIO), MIN_ZOOM_RATIO);
         }
 
         @JavascriptInterface
-        public float getMinZoomRatio() {
-            return MIN_ZOOM_RATIO;
-        }
-
-        @JavascriptInterface
-        public float getMaxZoomRatio() {
-            return MAX_ZOOM_RATIO;
-        }
-
-        @JavascriptInterface
-        public int getDocumentOrientationDegrees() {
-            return mDocumentOrientationDegrees;
+        public void setPage(int page) {
+            // mPage belongs to the main thread
+            activity.runOnUiThread(() -> {
+                if (page >= 1 && page <= mNumPages && page != mPage) {
+                    mPage = page;
+                    activity.invalidateOptionsMenu();
+                }
+            });
         }
 
         @JavascriptInterface
         public void setNumPages(int numPages) {
-            mNumPages = numPages;
-            activity.runOnUiThread(activity::invalidateOptionsMenu);
+            activity.runOnUiThread(() -> {
+                mNumPages = numPages;
+                activity.invalidateOptionsMenu();
+            });
         }
 
         @JavascriptInterface
@@ -177,10 +221,7 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
 
         @JavascriptInterface
         public void showPasswordPrompt() {
-            if (!getPasswordPromptFragment().isAdded()) {
-                getPasswordPromptFragment().show(activity.getSupportFragmentManager(), PasswordPromptFragment.class.getName());
-            }
-            passwordValidationViewModel.passwordMissing();
+            PdfViewer.this.showPasswordPrompt();
         }
 
         @JavascriptInterface
@@ -196,6 +237,42 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
             }
         }
 
+        @JavascriptInterface
+        public long getRenderCacheBudget() {
+            return mRenderCacheBudget;
+        }
+
+        @JavascriptInterface
+        public void setRenderCacheStats(int hits, int misses, int evictions, int entries,
+                long usedBytes, long budgetBytes) {
+            mRenderCacheStats = new RenderCacheStats(hits, misses, evictions, entries, usedBytes, budgetBytes);
+        }
+
+        @JavascriptInterface
+        public void setRenderMetrics(String json) {
+            final RenderMetrics metrics;
+            try {
+                metrics = new RenderMetrics(json);
+            } catch (JSONException e) {
+                Log.w(TAG, "invalid render metrics", e);
+                return;
+            }
+            mRenderMetrics = metrics;
+            activity.runOnUiThread(() -> onRenderMetrics(metrics));
+        }
+
+        @JavascriptInterface
+        public void onFindResults(String query, String pageMatches, boolean done) {
+            final JSONArray matches;
+            try {
+                matches = new JSONArray(pageMatches);
+            } catch (JSONException e) {
+                Log.w(TAG, "invalid find results", e);
+                return;
+            }
+            activity.runOnUiThread(() -> PdfViewer.this.onFindResults(query, matches, done));
+        }
+
         @JavascriptInterface
         public String getPassword() {
             return mEncryptedDocumentPassword != null ? mEncryptedDocumentPassword : "";
@@ -224,31 +301,21 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
 
         binding.webview.setBackgroundColor(Color.TRANSPARENT);
 
+        mRenderCacheBudget = getDefaultRenderCacheBudget();
+        mContinuousScrollMargin = isLowRamDevice() ? LOW_RAM_CONTINUOUS_SCROLL_MARGIN_DP
+                : CONTINUOUS_SCROLL_MARGIN_DP;
+        activity.registerComponentCallbacks(mMemoryCallbacks);
+
         if (BuildConfig.DEBUG) {
             WebView.setWebContentsDebuggingEnabled(true);
         }
 
-        final WebSettings settings = binding.webview.getSettings();
-        settings.setAllowContentAccess(false);
-        settings.setAllowFileAccess(false);
-        settings.setCacheMode(WebSettings.LOAD_NO_CACHE);
-        settings.setJavaScriptEnabled(true);
-        settings.setMinimumFontSize(1);
-
-        CookieManager.getInstance().setAcceptCookie(false);
+        configureWebView(binding.webview);
 
         binding.webview.addJavascriptInterface(new Channel(), "channel");
+        mCommands = new ViewerCommandChannel(binding.webview);
 
         binding.webview.setWebViewClient(new WebViewClient() {
-            private WebResourceResponse fromAsset(final String mime, final String path) {
-                try {
-                    InputStream inputStream = activity.getAssets().open(path.substring(1));
-                    return new WebResourceResponse(mime, null, inputStream);
-                } catch (IOException e) {
-                    return null;
-                }
-            }
-
             @Override
             public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
                 if (!"GET".equals(request.getMethod())) {
@@ -264,29 +331,12 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
                 Log.d(TAG, "path " + path);
 
                 if ("/placeholder.pdf".equals(path)) {
-                    mInputStream.reset();
-                    return new WebResourceResponse("application/pdf", null, mInputStream);
-                }
-
-                if ("/viewer/index.html".equals(path)) {
-                    final WebResourceResponse response = fromAsset("text/html", path);
-                    HashMap<String, String> headers = new HashMap<>();
-                    headers.put("Content-Security-Policy", CONTENT_SECURITY_POLICY);
-                    headers.put("Permissions-Policy", PERMISSIONS_POLICY);
-                    headers.put("X-Content-Type-Options", "nosniff");
-                    response.setResponseHeaders(headers);
-                    return response;
+                    final PdfDataSource dataSource = mDataSource;
+                    final Long size = fileSize;
+                    return serveDocument(dataSource, size != null ? size : 0, getHeader(request, "Range"));
                 }
 
-                if ("/viewer/main.css".equals(path)) {
-                    return fromAsset("text/css", path);
-                }
-
-                if ("/viewer/js/index.js".equals(path) || "/viewer/js/worker.js".equals(path)) {
-                    return fromAsset("application/javascript", path);
-                }
-
-                return null;
+                return serveViewerAsset(activity, path);
             }
 
             @Override
@@ -298,6 +348,8 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
             public void onPageFinished(WebView view, String url) {
                 mDocumentState = STATE_LOADED;
                 activity.invalidateOptionsMenu();
+                releasePrewarmedWebView();
+                mCommands.connect();
                 loadPdfWithPassword(mEncryptedDocumentPassword);
             }
         });
@@ -306,7 +358,7 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
                 new GestureHelper.GestureListener() {
                     @Override
                     public boolean onTapUp() {
-                        binding.webview.evaluateJavascript("isTextSelected()", selection -> {
+                        mCommands.request(ViewerCommandChannel.IS_TEXT_SELECTED, null, selection -> {
                             if (!Boolean.parseBoolean(selection)) {
                                 if (activity.getSupportActionBar().isShowing()) {
                                     hideSystemUi();
@@ -319,13 +371,23 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
                     }
 
                     @Override
-                    public void onZoomIn(float value) {
-                        zoomIn(value, false);
+                    public void onSwipeBegin(int direction) {
+                        prepareSwipe(direction);
+                    }
+
+                    @Override
+                    public boolean onFling(float velocityX, float velocityY) {
+                        return swipeToPage(velocityX, velocityY);
                     }
 
                     @Override
-                    public void onZoomOut(float value) {
-                        zoomOut(value, false);
+                    public void onZoomBegin(float focusX, float focusY) {
+                        zoomBegin(focusX, focusY);
+                    }
+
+                    @Override
+                    public void onZoom(float scale, float focusX, float focusY) {
+                        zoom(scale, focusX, focusY);
                     }
 
                     @Override
@@ -341,24 +403,278 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
         mTextView.setPadding(PADDING, 0, PADDING, 0);
     }
 
+    private boolean isLowRamDevice() {
+        final ActivityManager activityManager =
+                (ActivityManager) activity.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.isLowRamDevice();
+    }
+
+    // A quarter of the heap size the system suggests for this app, as canvases of the
+    // rendered pages are the largest allocations of the viewer, or an eighth on low RAM
+    // devices
+    private long getDefaultRenderCacheBudget() {
+        final ActivityManager activityManager =
+                (ActivityManager) activity.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getMemoryClass() * 1024L * 1024L / (isLowRamDevice() ? 8 : 4);
+    }
+
+    // Forward memory pressure to the viewer, which sheds prefetched pages, text layers
+    // and off-screen tiles as the level rises. From RUNNING_LOW on the blocks cached
+    // from the data source and the viewer assets are dropped too, as both can be read
+    // again.
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {}
+    };
+
+    private void trimMemory(int level) {
+        if (mDocumentState >= STATE_LOADED) {
+            mCommands.post(ViewerCommandChannel.TRIM_MEMORY, "[" + level + "]");
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            final PdfDataSource dataSource = mDataSource;
+            if (dataSource instanceof CachingDataSource) {
+                ((CachingDataSource) dataSource).clear();
+            }
+            ViewerAssets.clear();
+        }
+    }
+
+    // Limit the memory used by the canvases of rendered pages kept for reuse
+    public void setRenderCacheBudget(long bytes) {
+        mRenderCacheBudget = bytes;
+        mCommands.post(ViewerCommandChannel.SET_RENDER_CACHE_BUDGET, "[" + bytes + "]");
+    }
+
+    // Counters of the render cache for the current document, or null before the first
+    // page has been rendered
+    public RenderCacheStats getRenderCacheStats() {
+        return mRenderCacheStats;
+    }
+
+    // Render timings of the current document, or null before the first page has been
+    // rendered
+    public RenderMetrics getMetricsSnapshot() {
+        return mRenderMetrics;
+    }
+
+    // Called on the main thread with new render timings, at most once per idle period of
+    // the viewer
+    public void setRenderMetricsListener(RenderMetrics.Listener listener) {
+        mRenderMetricsListener = listener;
+    }
+
+    private void onRenderMetrics(RenderMetrics metrics) {
+        if (mRenderMetricsListener != null) {
+            mRenderMetricsListener.onRenderMetrics(metrics);
+        }
+        if (mMetricsOverlay != null) {
+            mMetricsOverlay.setText(metrics.toString());
+        }
+    }
+
+    private void toggleMetricsOverlay() {
+        if (mMetricsOverlay != null) {
+            binding.getRoot().removeView(mMetricsOverlay);
+            mMetricsOverlay = null;
+            return;
+        }
+        mMetricsOverlay = new TextView(activity);
+        mMetricsOverlay.setBackgroundColor(Color.argb(ALPHA_LOW, 0, 0, 0));
+        mMetricsOverlay.setTextColor(ColorStateList.valueOf(Color.WHITE));
+        mMetricsOverlay.setTextSize(10);
+        mMetricsOverlay.setTypeface(Typeface.MONOSPACE);
+        mMetricsOverlay.setPadding(PADDING, PADDING, PADDING, PADDING);
+        final RenderMetrics metrics = mRenderMetrics;
+        if (metrics != null) {
+            mMetricsOverlay.setText(metrics.toString());
+        }
+        final CoordinatorLayout.LayoutParams params = new CoordinatorLayout.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+        params.gravity = Gravity.BOTTOM | Gravity.START;
+        binding.getRoot().addView(mMetricsOverlay, params);
+    }
+
+    // Depth, maximum depth and per-priority wait times of the render queue as JSON, for
+    // diagnosing rendering stalls
+    public void getRenderQueueStats(@NonNull ValueCallback<String> callback) {
+        mCommands.request(ViewerCommandChannel.GET_RENDER_QUEUE_STATS, null, callback);
+    }
+
     public void onDestroy() {
+        activity.unregisterComponentCallbacks(mMemoryCallbacks);
+        releasePrewarmedWebView();
+        mProbeExecutor.shutdownNow();
+        mCommands.disconnect();
         binding.webview.removeJavascriptInterface("channel");
         binding.getRoot().removeView(binding.webview);
         binding.webview.destroy();
-        maybeCloseInputStream();
+        maybeCloseDataSource();
+    }
+
+    static void configureWebView(final WebView webView) {
+        final WebSettings settings = webView.getSettings();
+        settings.setAllowContentAccess(false);
+        settings.setAllowFileAccess(false);
+        settings.setCacheMode(WebSettings.LOAD_NO_CACHE);
+        settings.setJavaScriptEnabled(true);
+        settings.setMinimumFontSize(1);
+
+        CookieManager.getInstance().setAcceptCookie(false);
+    }
+
+    // The viewer pages, their stylesheet and scripts, or null for any other path
+    static WebResourceResponse serveViewerAsset(final Context context, final String path) {
+        final String mime;
+        if ("/viewer/index.html".equals(path) || "/viewer/raster.html".equals(path)) {
+            mime = "text/html";
+        } else if ("/viewer/main.css".equals(path)) {
+            mime = "text/css";
+        } else if ("/viewer/js/index.js".equals(path) || "/viewer/js/raster.js".equals(path) ||
+                "/viewer/js/render_worker.js".equals(path) || "/viewer/js/worker.js".equals(path)) {
+            mime = "application/javascript";
+        } else {
+            return null;
+        }
+
+        final InputStream inputStream = ViewerAssets.open(context, path);
+        if (inputStream == null) {
+            return null;
+        }
+        final WebResourceResponse response = new WebResourceResponse(mime, null, inputStream);
+        if ("text/html".equals(mime)) {
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put("Content-Security-Policy", CONTENT_SECURITY_POLICY);
+            headers.put("Permissions-Policy", PERMISSIONS_POLICY);
+            headers.put("X-Content-Type-Options", "nosniff");
+            response.setResponseHeaders(headers);
+        }
+        return response;
     }
 
-    void maybeCloseInputStream() {
-        InputStream stream = mInputStream;
-        if (stream == null) {
+    // Do part of the work of opening the first document ahead of time: read the viewer
+    // assets into memory and start the WebView provider and a renderer process with a
+    // blank off-screen WebView. Call it on the main thread, for example at app start or
+    // when a PDF becomes visible in a listing. The viewer still loads its own page and
+    // pdf.js worker, as it inflates its WebView from the layout and cannot adopt this
+    // one. The off-screen WebView keeps the renderer process alive until the page of a
+    // PdfViewer has loaded.
+    public static void prewarm(@NonNull Context context) {
+        final Context appContext = context.getApplicationContext();
+        ViewerAssets.preloadAsync(appContext);
+        if (sPrewarmedWebView != null) {
             return;
         }
-        mInputStream = null;
+
+        final WebView webView = new WebView(appContext);
+        webView.loadUrl("about:blank");
+        sPrewarmedWebView = webView;
+    }
+
+    private static void releasePrewarmedWebView() {
+        if (sPrewarmedWebView != null) {
+            sPrewarmedWebView.destroy();
+            sPrewarmedWebView = null;
+        }
+    }
+
+    void maybeCloseDataSource() {
+        PdfDataSource dataSource = mDataSource;
+        if (dataSource == null) {
+            return;
+        }
+        mDataSource = null;
         try {
-            stream.close();
+            dataSource.close();
         } catch (IOException ignored) {}
     }
 
+    static String getHeader(final WebResourceRequest request, final String name) {
+        for (Map.Entry<String, String> header : request.getRequestHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    // Answer a document request from pdf.js, honouring a single "bytes=" range so that
+    // pdf.js can fetch only the chunks it needs instead of the whole file
+    static WebResourceResponse serveDocument(final PdfDataSource dataSource, final long size,
+            final String range) {
+        if (dataSource == null) {
+            return null;
+        }
+
+        final HashMap<String, String> headers = new HashMap<>();
+        headers.put("Accept-Ranges", "bytes");
+
+        if (range == null) {
+            headers.put("Content-Length", Long.toString(size));
+            return new WebResourceResponse("application/pdf", null, 200, "OK", headers,
+                    new RangeInputStream(dataSource, 0, size));
+        }
+
+        final long[] bounds = parseRange(range, size);
+        if (bounds == null) {
+            headers.put("Content-Range", "bytes */" + size);
+            return new WebResourceResponse("application/pdf", null, 416,
+                    "Range Not Satisfiable", headers, new ByteArrayInputStream(new byte[0]));
+        }
+
+        headers.put("Content-Length", Long.toString(bounds[1] - bounds[0] + 1));
+        headers.put("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+        return new WebResourceResponse("application/pdf", null, 206, "Partial Content", headers,
+                new RangeInputStream(dataSource, bounds[0], bounds[1] + 1));
+    }
+
+    // Returns the inclusive [first, last] byte positions of a range header, or null when
+    // it is malformed or unsatisfiable
+    private static long[] parseRange(final String range, final long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // Suffix range: the final N bytes
+                final long length = Long.parseLong(last);
+                if (length <= 0) {
+                    return null;
+                }
+                start = Math.max(0, size - length);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if (start < 0 || start >= size || end < start) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     private PasswordPromptFragment getPasswordPromptFragment() {
         if (mPasswordPromptFragment == null) {
             final Fragment fragment = activity.getSupportFragmentManager().findFragmentByTag(PasswordPromptFragment.class.getName());
@@ -405,39 +721,178 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
     @NonNull
     @Override
     public Loader<List<CharSequence>> onCreateLoader(int id, Bundle args) {
+        if (id == DocumentPropertiesAsyncTaskLoader.PROBE_ID) {
+            return new DocumentPropertiesAsyncTaskLoader(activity, getProbedInfo(), mNumPages, fileName, fileSize);
+        }
         return new DocumentPropertiesAsyncTaskLoader(activity, args.getString(KEY_PROPERTIES), mNumPages, fileName, fileSize);
     }
 
     @Override
     public void onLoadFinished(@NonNull Loader<List<CharSequence>> loader, List<CharSequence> data) {
-        mDocumentProperties = data;
+        if (loader.getId() == DocumentPropertiesAsyncTaskLoader.PROBE_ID) {
+            mProbedDocumentProperties = data;
+        } else {
+            mDocumentProperties = data;
+        }
         setToolbarTitleWithDocumentName();
-        LoaderManager.getInstance(activity).destroyLoader(DocumentPropertiesAsyncTaskLoader.ID);
+        LoaderManager.getInstance(activity).destroyLoader(loader.getId());
     }
 
     @Override
     public void onLoaderReset(@NonNull Loader<List<CharSequence>> loader) {
-        mDocumentProperties = null;
+        if (loader.getId() == DocumentPropertiesAsyncTaskLoader.PROBE_ID) {
+            mProbedDocumentProperties = null;
+        } else {
+            mDocumentProperties = null;
+        }
+    }
+
+    // The properties from pdf.js, or those from the probe until pdf.js supplies them
+    private List<CharSequence> getDocumentProperties() {
+        return mDocumentProperties != null ? mDocumentProperties : mProbedDocumentProperties;
     }
 
     public void loadPdf(ByteArrayInputStream inputStream, String fileName, Long fileSize) {
+        final ByteArrayDataSource dataSource = new ByteArrayDataSource(inputStream);
+        loadPdf(dataSource, fileName, fileSize != null ? fileSize : dataSource.getSize());
+    }
+
+    // Load a document read on demand from dataSource. Reads go through a block cache, so
+    // memory use is bounded by the cache budget rather than by the document size. The
+    // viewer takes ownership of dataSource and closes it once another source is loaded
+    // or the viewer is destroyed, or right away when this throws. Loading the current
+    // source again keeps it open.
+    public void loadPdf(@NonNull PdfDataSource dataSource, String fileName) throws IOException {
+        if (mDataSource instanceof CachingDataSource && ((CachingDataSource) mDataSource).wraps(dataSource)) {
+            loadPdf(mDataSource, fileName, dataSource.getSize());
+            return;
+        }
+        final int cacheBytes = isLowRamDevice() ? LOW_RAM_DATA_SOURCE_CACHE_BYTES : DATA_SOURCE_CACHE_BYTES;
+        final PdfDataSource cached;
+        try {
+            cached = new CachingDataSource(dataSource, cacheBytes);
+        } catch (IOException e) {
+            try {
+                dataSource.close();
+            } catch (IOException ignored) {}
+            throw e;
+        }
+        loadPdf(cached, fileName, cached.getSize());
+    }
+
+    private void loadPdf(PdfDataSource dataSource, String fileName, long fileSize) {
         mPage = 1;
+        mNumPages = 0;
         mDocumentProperties = null;
-        mInputStream = inputStream;
+        mProbedDocumentProperties = null;
+        mProbeResult = null;
+        mRenderCacheStats = null;
+        mRenderMetrics = null;
+        if (mFindItem != null) {
+            mFindItem.collapseActionView();
+        }
+        resetFind("");
+        mPinchTransformVersion++;
+        resetPinchTransform();
+        if (mDataSource != dataSource) {
+            maybeCloseDataSource();
+        }
+        mDataSource = dataSource;
         this.fileName = fileName;
         this.fileSize = fileSize;
         showSystemUi();
         activity.invalidateOptionsMenu();
+        probeDocument(dataSource);
+        if (mDocumentState >= STATE_LOADED) {
+            // The viewer page and its pdf.js worker stay loaded: the viewer closes the
+            // previous document and opens this one in place
+            mEncryptedDocumentPassword = null;
+            if (getPasswordPromptFragment().isAdded()) {
+                getPasswordPromptFragment().dismiss();
+            }
+            loadPdfWithPassword(null);
+            return;
+        }
+        mCommands.disconnect();
         binding.webview.loadUrl("https://localhost/viewer/index.html");
     }
 
+    // Read the page count and document information straight from the file while the
+    // viewer page and pdf.js load, so that the title and page count appear without
+    // waiting for them. pdf.js alone decides whether a password is needed.
+    private void probeDocument(final PdfDataSource dataSource) {
+        mProbeExecutor.execute(() -> {
+            final PdfProbe.Result result;
+            try {
+                result = PdfProbe.probe(dataSource);
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "document probe failed, waiting for pdf.js", e);
+                return;
+            }
+            activity.runOnUiThread(() -> onProbeResult(dataSource, result));
+        });
+    }
+
+    private void onProbeResult(final PdfDataSource dataSource, final PdfProbe.Result result) {
+        // Another document was opened in the meantime
+        if (dataSource != mDataSource || activity.isFinishing()) {
+            return;
+        }
+        // pdf.js is authoritative once it has reported the page count
+        if (mNumPages == 0 && result.pageCount > 0) {
+            mNumPages = result.pageCount;
+            activity.invalidateOptionsMenu();
+        }
+        if (result.info != null && mDocumentProperties == null) {
+            mProbeResult = result;
+            LoaderManager.getInstance(activity).restartLoader(DocumentPropertiesAsyncTaskLoader.PROBE_ID, null, this);
+        }
+    }
+
+    // The probed document information under the keys pdf.js uses for it
+    private Map<String, String> getProbedInfo() {
+        final PdfProbe.Result result = mProbeResult;
+        final Map<String, String> info = new HashMap<>(result.info);
+        info.put("PDFFormatVersion", result.version);
+        return info;
+    }
+
+    private void showPasswordPrompt() {
+        if (!getPasswordPromptFragment().isAdded()) {
+            getPasswordPromptFragment().show(activity.getSupportFragmentManager(), PasswordPromptFragment.class.getName());
+        }
+        passwordValidationViewModel.passwordMissing();
+    }
+
     public void loadPdfWithPassword(final String password) {
         mEncryptedDocumentPassword = password;
-        binding.webview.evaluateJavascript("loadDocument()", null);
+        mCommands.post(ViewerCommandChannel.LOAD_DOCUMENT, "[" + getViewState() + "]");
+    }
+
+    // Snapshot of the view state sent along with every command, so that the viewer
+    // never blocks on the channel to read it. The version increases with every
+    // snapshot, letting the viewer ignore one that arrives after a newer one.
+    private String getViewState() {
+        mViewStateVersion++;
+        return "{\"version\": " + mViewStateVersion +
+            ", \"page\": " + mPage +
+            ", \"zoomRatio\": " + mZoomRatio +
+            ", \"minZoomRatio\": " + MIN_ZOOM_RATIO +
+            ", \"maxZoomRatio\": " + MAX_ZOOM_RATIO +
+            ", \"orientationDegrees\": " + mDocumentOrientationDegrees +
+            ", \"continuousScroll\": " + mContinuousScroll +
+            ", \"continuousScrollMargin\": " + mContinuousScrollMargin + "}";
     }
 
     private void renderPage(final int zoom) {
-        binding.webview.evaluateJavascript("onRenderPage(" + zoom + ")", null);
+        mCommands.post(ViewerCommandChannel.RENDER_PAGE, "[" + zoom + ", " + getViewState() + "]");
+    }
+
+    // Have the viewer show mPage. Other commands carry the page along with the rest of
+    // the view state, but the viewer ignores it while scrolling continuously, when the
+    // page is whichever one is in the middle of the screen.
+    private void goToPage() {
+        mCommands.post(ViewerCommandChannel.GO_TO_PAGE, "[" + getViewState() + "]");
     }
 
     private void documentOrientationChanged(final int orientationDegreesOffset) {
@@ -448,24 +903,80 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
         renderPage(0);
     }
 
-    private void zoomIn(float value, boolean end) {
-        if (mZoomRatio < MAX_ZOOM_RATIO) {
-            mZoomRatio = Math.min(mZoomRatio + value, MAX_ZOOM_RATIO);
-            renderPage(end ? 1 : 2);
-            activity.invalidateOptionsMenu();
-        }
+    // While pinching, the WebView itself is scaled around the point where the gesture
+    // began and moved along with the fingers, so the viewer does no work until the
+    // gesture ends. The page is then rendered once at the final zoom ratio, keeping the
+    // point of the page under the fingers in place.
+    private void zoomBegin(float focusX, float focusY) {
+        mPinchTransformVersion++;
+        mPinchStartZoomRatio = mZoomRatio;
+        mPinchAnchorX = focusX;
+        mPinchAnchorY = focusY;
+        mPinchFocusX = focusX;
+        mPinchFocusY = focusY;
     }
 
-    private void zoomOut(float value, boolean end) {
-        if (mZoomRatio > MIN_ZOOM_RATIO) {
-            mZoomRatio = Math.max(mZoomRatio - value, MIN_ZOOM_RATIO);
-            renderPage(end ? 1 : 2);
-            activity.invalidateOptionsMenu();
-        }
+    private void zoom(float scale, float focusX, float focusY) {
+        mZoomRatio = Math.max(Math.min(mPinchStartZoomRatio * scale, MAX_ZOOM_RATIO), MIN_ZOOM_RATIO);
+        mPinchFocusX = focusX;
+        mPinchFocusY = focusY;
+        final float viewScale = mZoomRatio / mPinchStartZoomRatio;
+        final WebView webView = binding.webview;
+        webView.setPivotX(mPinchAnchorX);
+        webView.setPivotY(mPinchAnchorY);
+        webView.setScaleX(viewScale);
+        webView.setScaleY(viewScale);
+        webView.setTranslationX(focusX - mPinchAnchorX);
+        webView.setTranslationY(focusY - mPinchAnchorY);
     }
 
     private void zoomEnd() {
-        renderPage(1);
+        // The viewer works in CSS pixels
+        final float density = activity.getResources().getDisplayMetrics().density;
+        final String focus = "{\"anchorX\": " + mPinchAnchorX / density +
+            ", \"anchorY\": " + mPinchAnchorY / density +
+            ", \"x\": " + mPinchFocusX / density +
+            ", \"y\": " + mPinchFocusY / density + "}";
+        final int version = mPinchTransformVersion;
+        mCommands.request(ViewerCommandChannel.RENDER_PAGE, "[1, " + getViewState() + ", " + focus + "]",
+                result -> clearPinchTransform(version));
+        activity.invalidateOptionsMenu();
+    }
+
+    // Drop the transform once the viewer shows the page at the new size, unless another
+    // pinch has started since
+    private void clearPinchTransform(final int version) {
+        if (version != mPinchTransformVersion) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            binding.webview.postVisualStateCallback(version, new WebView.VisualStateCallback() {
+                @Override
+                public void onComplete(long requestId) {
+                    if (requestId == mPinchTransformVersion) {
+                        resetPinchTransform();
+                    }
+                }
+            });
+        } else {
+            resetPinchTransform();
+        }
+    }
+
+    private void resetPinchTransform() {
+        final WebView webView = binding.webview;
+        webView.setScaleX(1);
+        webView.setScaleY(1);
+        webView.setTranslationX(0);
+        webView.setTranslationY(0);
+    }
+
+    // Show all pages one after another in a vertically scrolling list instead of one
+    // page at a time
+    public void setContinuousScroll(boolean enabled) {
+        mContinuousScroll = enabled;
+        mCommands.post(ViewerCommandChannel.SET_CONTINUOUS_SCROLL, "[" + getViewState() + "]");
+        activity.invalidateOptionsMenu();
     }
 
     private static void enableDisableMenuItem(MenuItem item, boolean enable) {
@@ -481,12 +992,42 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
     public void onJumpToPageInDocument(final int selected_page) {
         if (selected_page >= 1 && selected_page <= mNumPages && mPage != selected_page) {
             mPage = selected_page;
-            renderPage(0);
+            goToPage();
             showPageNumber();
             activity.invalidateOptionsMenu();
         }
     }
 
+    // Single page mode pages with horizontal swipes once the page cannot scroll further
+    // that way. Rendering of the page being swiped to starts as soon as the finger moves
+    // sideways, and the viewer slides it in when the fling ends.
+    private boolean canSwipeTo(int direction) {
+        final int page = mPage + direction;
+        return !mContinuousScroll && page >= 1 && page <= mNumPages &&
+            !binding.webview.canScrollHorizontally(direction);
+    }
+
+    private void prepareSwipe(int direction) {
+        if (canSwipeTo(direction)) {
+            mCommands.post(ViewerCommandChannel.PREPARE_PAGE, "[" + (mPage + direction) + "]");
+        }
+    }
+
+    private boolean swipeToPage(float velocityX, float velocityY) {
+        if (Math.abs(velocityX) < 2 * Math.abs(velocityY)) {
+            return false;
+        }
+        final int direction = velocityX < 0 ? 1 : -1;
+        if (!canSwipeTo(direction)) {
+            return false;
+        }
+        mPage += direction;
+        mCommands.post(ViewerCommandChannel.SLIDE_TO_PAGE, "[" + direction + ", " + getViewState() + "]");
+        showPageNumber();
+        activity.invalidateOptionsMenu();
+        return true;
+    }
+
     private void showSystemUi() {
         ViewKt.showSystemUi(binding.getRoot(), activity.getWindow());
         activity.getSupportActionBar().show();
@@ -498,10 +1039,14 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
     }
 
     private void showPageNumber() {
+        showToast(String.format("%s/%s", mPage, mNumPages));
+    }
+
+    private void showToast(CharSequence text) {
         if (mToast != null) {
             mToast.cancel();
         }
-        mTextView.setText(String.format("%s/%s", mPage, mNumPages));
+        mTextView.setText(text);
         mToast = new Toast(activity);
         mToast.setGravity(Gravity.BOTTOM | Gravity.END, PADDING, PADDING);
         mToast.setDuration(Toast.LENGTH_SHORT);
@@ -509,21 +1054,169 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
         mToast.show();
     }
 
+    // Search the document for query, which is matched regardless of case, or stop
+    // searching when it is empty. The viewer reports hits as it indexes the text of the
+    // pages from the current one on, and the first hit from there is selected.
+    public void find(@NonNull String query) {
+        if (query.equals(mFindQuery)) {
+            return;
+        }
+        resetFind(query);
+        mCommands.post(ViewerCommandChannel.FIND, "[" + JSONObject.quote(query) + ", " + mPage + "]");
+        activity.invalidateOptionsMenu();
+    }
+
+    public void clearFind() {
+        find("");
+    }
+
+    private void resetFind(String query) {
+        mFindQuery = query;
+        mFindPageMatches.clear();
+        mFindMatchCount = 0;
+        mFindDone = query.isEmpty();
+        mFindStartPage = mPage;
+        mFindPage = 0;
+        mFindIndex = 0;
+    }
+
+    private void onFindResults(String query, JSONArray matches, boolean done) {
+        // Results of an earlier search still on their way
+        if (!query.equals(mFindQuery) || mFindDone) {
+            return;
+        }
+        for (int i = 0; i < matches.length(); i++) {
+            final JSONArray pageMatches = matches.optJSONArray(i);
+            if (pageMatches == null) {
+                continue;
+            }
+            final int page = pageMatches.optInt(0);
+            final int count = pageMatches.optInt(1);
+            if (page >= 1 && page <= mNumPages && count > 0 && !mFindPageMatches.containsKey(page)) {
+                mFindPageMatches.put(page, count);
+                mFindMatchCount += count;
+            }
+        }
+        mFindDone = done;
+        if (mFindPage == 0) {
+            // Wait for the pages after the starting one before wrapping around
+            Integer page = mFindPageMatches.ceilingKey(mFindStartPage);
+            if (page == null && done && !mFindPageMatches.isEmpty()) {
+                page = mFindPageMatches.firstKey();
+            }
+            if (page != null) {
+                selectFindMatch(page, 0);
+            } else if (done) {
+                showToast(activity.getString(R.string.find_no_matches));
+            }
+        }
+    }
+
+    public void findNext() {
+        if (mFindPage == 0) {
+            return;
+        }
+        if (mFindIndex + 1 < mFindPageMatches.get(mFindPage)) {
+            selectFindMatch(mFindPage, mFindIndex + 1);
+            return;
+        }
+        final Integer page = mFindPageMatches.higherKey(mFindPage);
+        selectFindMatch(page != null ? page : mFindPageMatches.firstKey(), 0);
+    }
+
+    public void findPrevious() {
+        if (mFindPage == 0) {
+            return;
+        }
+        if (mFindIndex > 0) {
+            selectFindMatch(mFindPage, mFindIndex - 1);
+            return;
+        }
+        Integer page = mFindPageMatches.lowerKey(mFindPage);
+        if (page == null) {
+            page = mFindPageMatches.lastKey();
+        }
+        selectFindMatch(page, mFindPageMatches.get(page) - 1);
+    }
+
+    // Go to the page of a hit and have the viewer show it, passing the page of the
+    // following hit along so that the viewer can get it ready
+    private void selectFindMatch(int page, int index) {
+        mFindPage = page;
+        mFindIndex = index;
+        if (page != mPage) {
+            mPage = page;
+            goToPage();
+            activity.invalidateOptionsMenu();
+        }
+        Integer nextPage = mFindPageMatches.higherKey(page);
+        if (nextPage == null) {
+            nextPage = mFindPageMatches.firstKey();
+        }
+        mCommands.post(ViewerCommandChannel.SHOW_FIND_MATCH, "[" + page + ", " + index + ", " + nextPage + "]");
+
+        int position = index + 1;
+        for (final int count : mFindPageMatches.headMap(page).values()) {
+            position += count;
+        }
+        showToast(activity.getString(mFindDone ? R.string.find_position : R.string.find_position_partial,
+                position, mFindMatchCount));
+    }
+
     public void onCreateOptionMenu(@NonNull Menu menu) {
         MenuInflater inflater = activity.getMenuInflater();
         inflater.inflate(R.menu.pdf_viewer, menu);
         if (BuildConfig.DEBUG) {
             inflater.inflate(R.menu.pdf_viewer_debug, menu);
         }
+
+        mFindItem = menu.findItem(R.id.action_find);
+        final SearchView searchView = (SearchView) mFindItem.getActionView();
+        searchView.setQueryHint(activity.getString(R.string.action_find));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // Submitting the same query again moves on to the next hit
+                if (query.equals(mFindQuery)) {
+                    findNext();
+                } else {
+                    find(query);
+                }
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                if (newText.isEmpty()) {
+                    clearFind();
+                }
+                return true;
+            }
+        });
+        mFindItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(@NonNull MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(@NonNull MenuItem item) {
+                clearFind();
+                return true;
+            }
+        });
     }
 
     public boolean onPrepareOptionsMenu(@NonNull Menu menu) {
         final ArrayList<Integer> ids = new ArrayList<>(Arrays.asList(R.id.action_jump_to_page,
                 R.id.action_next, R.id.action_previous, R.id.action_first, R.id.action_last,
                 R.id.action_rotate_clockwise, R.id.action_rotate_counterclockwise,
-                R.id.action_view_document_properties));
+                R.id.action_continuous_scroll, R.id.action_view_document_properties,
+                R.id.action_find));
         if (BuildConfig.DEBUG) {
             ids.add(R.id.debug_action_toggle_text_layer_visibility);
+            ids.add(R.id.debug_action_show_render_metrics);
         }
         if (mDocumentState < STATE_LOADED) {
             for (final int id : ids) {
@@ -542,8 +1235,15 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
             mDocumentState = STATE_END;
         }
 
+        menu.findItem(R.id.action_continuous_scroll).setChecked(mContinuousScroll);
+        if (BuildConfig.DEBUG) {
+            menu.findItem(R.id.debug_action_show_render_metrics).setChecked(mMetricsOverlay != null);
+        }
         enableDisableMenuItem(menu.findItem(R.id.action_next), mPage < mNumPages);
         enableDisableMenuItem(menu.findItem(R.id.action_previous), mPage > 1);
+        final boolean finding = mDocumentState >= STATE_LOADED && !mFindQuery.isEmpty();
+        menu.findItem(R.id.action_find_previous).setVisible(finding);
+        menu.findItem(R.id.action_find_next).setVisible(finding);
 
         return true;
     }
@@ -568,17 +1268,30 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
         } else if (itemId == R.id.action_rotate_counterclockwise) {
             documentOrientationChanged(-90);
             return true;
+        } else if (itemId == R.id.action_continuous_scroll) {
+            setContinuousScroll(!mContinuousScroll);
+            return true;
         } else if (itemId == R.id.action_view_document_properties) {
             DocumentPropertiesFragment
-                .newInstance(mDocumentProperties)
+                .newInstance(getDocumentProperties())
                 .show(activity.getSupportFragmentManager(), DocumentPropertiesFragment.TAG);
             return true;
+        } else if (itemId == R.id.action_find_previous) {
+            findPrevious();
+            return true;
+        } else if (itemId == R.id.action_find_next) {
+            findNext();
+            return true;
         } else if (itemId == R.id.action_jump_to_page) {
             new JumpToPageFragment(this)
                 .show(activity.getSupportFragmentManager(), JumpToPageFragment.TAG);
             return true;
         } else if (itemId == R.id.debug_action_toggle_text_layer_visibility) {
-            binding.webview.evaluateJavascript("toggleTextLayerVisibility()", null);
+            mCommands.post(ViewerCommandChannel.TOGGLE_TEXT_LAYER_VISIBILITY, null);
+            return true;
+        } else if (itemId == R.id.debug_action_show_render_metrics) {
+            toggleMetricsOverlay();
+            activity.invalidateOptionsMenu();
             return true;
         }
 
@@ -586,10 +1299,11 @@ public class PdfViewer implements LoaderManager.LoaderCallbacks<List<CharSequenc
     }
 
     private String getCurrentDocumentName() {
-        if (mDocumentProperties == null || mDocumentProperties.isEmpty()) return "";
+        final List<CharSequence> properties = getDocumentProperties();
+        if (properties == null || properties.isEmpty()) return "";
         String fileName = "";
         String title = "";
-        for (CharSequence property : mDocumentProperties) {
+        for (CharSequence property : properties) {
             if (property.toString().startsWith("File name:")) {
                 fileName = property.toString().replace("File name:", "");
             }
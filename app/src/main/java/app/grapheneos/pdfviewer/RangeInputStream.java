@@ -0,0 +1,56 @@
+package app.grapheneos.pdfviewer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    Serves the byte range [start, end) of a PdfDataSource as the body of a response.
+    Each response owns its position, so concurrent range requests do not interfere.
+*/
+
+class RangeInputStream extends InputStream {
+    private final PdfDataSource source;
+    private final long end;
+    private long position;
+
+    RangeInputStream(PdfDataSource source, long start, long end) {
+        this.source = source;
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        final int n = source.readAt(position, b, off, (int) Math.min(len, end - position));
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        final long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+}
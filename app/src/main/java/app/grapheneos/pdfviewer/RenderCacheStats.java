@@ -0,0 +1,30 @@
+package app.grapheneos.pdfviewer;
+
+/*
+    Counters of the viewer's render cache, as last reported by the page through the
+    JavaScript bridge.
+*/
+
+public class RenderCacheStats {
+    public final int hits;
+    public final int misses;
+    public final int evictions;
+    public final int entries;
+    public final long usedBytes;
+    public final long budgetBytes;
+
+    RenderCacheStats(int hits, int misses, int evictions, int entries, long usedBytes, long budgetBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.usedBytes = usedBytes;
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions +
+                ", entries: " + entries + ", used: " + usedBytes + "/" + budgetBytes;
+    }
+}
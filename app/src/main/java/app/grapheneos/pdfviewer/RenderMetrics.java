@@ -0,0 +1,106 @@
+package app.grapheneos.pdfviewer;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+    Render timings of the current document, as last reported by the page through the
+    JavaScript bridge. Times are in milliseconds.
+*/
+
+public class RenderMetrics {
+    public interface Listener {
+        void onRenderMetrics(@NonNull RenderMetrics metrics);
+    }
+
+    // Counts of samples per bucket, each bucket holding the samples up to its upper
+    // bound and above the previous one, with a last bucket for everything slower
+    public static class Histogram {
+        public final double[] upperBounds;
+        public final int[] counts;
+        public final int count;
+        public final double sum;
+        public final double max;
+
+        Histogram(double[] upperBounds, JSONObject json) throws JSONException {
+            this.upperBounds = upperBounds;
+            final JSONArray countsJson = json.getJSONArray("counts");
+            counts = new int[countsJson.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = countsJson.getInt(i);
+            }
+            count = json.getInt("count");
+            sum = json.getDouble("sum");
+            max = json.getDouble("max");
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        // Upper bound of the bucket holding the given fraction of samples, or infinity
+        // when that is the last bucket
+        public double getPercentile(double fraction) {
+            final double target = fraction * count;
+            int seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return i < upperBounds.length ? upperBounds[i] : Double.POSITIVE_INFINITY;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "n " + count + ", mean " + Math.round(getMean()) + ", p90 <= " + getPercentile(0.9) +
+                    ", max " + Math.round(max);
+        }
+    }
+
+    // -1 until the first page has been shown
+    public final double timeToFirstPage;
+    public final long loadBytes;
+    public final int renders;
+    public final int cacheHits;
+    public final int cacheMisses;
+    public final long canvasBytes;
+    public final Histogram getPage;
+    public final Histogram render;
+    public final Histogram textLayer;
+    public final Histogram display;
+
+    RenderMetrics(String json) throws JSONException {
+        final JSONObject object = new JSONObject(json);
+        final JSONArray boundsJson = object.getJSONArray("bucketBounds");
+        final double[] bounds = new double[boundsJson.length()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = boundsJson.getDouble(i);
+        }
+        timeToFirstPage = object.getDouble("timeToFirstPage");
+        loadBytes = object.getLong("loadBytes");
+        renders = object.getInt("renders");
+        cacheHits = object.getInt("cacheHits");
+        cacheMisses = object.getInt("cacheMisses");
+        canvasBytes = object.getLong("canvasBytes");
+        getPage = new Histogram(bounds, object.getJSONObject("getPage"));
+        render = new Histogram(bounds, object.getJSONObject("render"));
+        textLayer = new Histogram(bounds, object.getJSONObject("textLayer"));
+        display = new Histogram(bounds, object.getJSONObject("display"));
+    }
+
+    @Override
+    public String toString() {
+        return "first page: " + Math.round(timeToFirstPage) + " ms, loaded: " + loadBytes / 1024 + " KiB\n" +
+                "renders: " + renders + ", cache hits: " + cacheHits + ", misses: " + cacheMisses +
+                ", canvases: " + canvasBytes / (1024 * 1024) + " MiB\n" +
+                "getPage: " + getPage + "\n" +
+                "render: " + render + "\n" +
+                "text layer: " + textLayer + "\n" +
+                "display: " + display;
+    }
+}
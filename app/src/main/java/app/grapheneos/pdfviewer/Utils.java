@@ -1,44 +1,79 @@
 package app.grapheneos.pdfviewer;
 
-import android.text.TextUtils;
-
-import java.math.RoundingMode;
 import java.text.DateFormat;
-import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class Utils {
 
-    private static int parseIntSafely(String field) throws ParseException  {
-        try {
-            return Integer.parseInt(field);
-        } catch (NumberFormatException e) {
-            throw new ParseException("Error while parsing int", -1);
+    // Creating a DateFormat loads locale data, so one is kept per thread along with a
+    // Calendar to fill in, and both are rebuilt only when the default locale or time
+    // zone changes
+    private static final class DateFormatter {
+        final Locale locale;
+        final TimeZone timeZone;
+        final Calendar calendar;
+        final DateFormat format;
+
+        DateFormatter(Locale locale, TimeZone timeZone) {
+            this.locale = locale;
+            this.timeZone = timeZone;
+            calendar = Calendar.getInstance(timeZone, locale);
+            format = DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.LONG, locale);
+            format.setTimeZone(timeZone);
         }
     }
 
+    private static final ThreadLocal<DateFormatter> sDateFormatter = new ThreadLocal<>();
+
+    private static DateFormatter getDateFormatter() {
+        final Locale locale = Locale.getDefault();
+        final TimeZone timeZone = TimeZone.getDefault();
+        DateFormatter formatter = sDateFormatter.get();
+        if (formatter == null || !formatter.locale.equals(locale) || !formatter.timeZone.equals(timeZone)) {
+            formatter = new DateFormatter(locale, timeZone);
+            sDateFormatter.set(formatter);
+        }
+        return formatter;
+    }
+
+    // Read the decimal digits of date from start to end without creating substrings.
+    // Positions count the "D:" prefix even when date lacks it, so shift maps them to
+    // indices in date.
+    private static int parseField(String date, int shift, int start, int end, String error)
+            throws ParseException {
+        int value = 0;
+        for (int position = start; position < end; position++) {
+            final int digit = Character.digit(date.charAt(position + shift), 10);
+            if (digit < 0) {
+                throw new ParseException(error, start);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
     // Parse date as per PDF spec (complies with PDF v1.4 to v1.7)
     public static String parseDate(String date) throws ParseException {
         int position = 0;
 
         // D: prefix is optional for PDF < v1.7; required for PDF v1.7
-        if (!date.startsWith("D:")) {
-            date = "D:" + date;
-        }
-        if (date.length() < 6 || date.length() > 23) {
+        final int shift = date.startsWith("D:") ? 0 : -2;
+        final int length = date.length() - shift;
+        if (length < 6 || length > 23) {
             throw new ParseException("Invalid datetime length", position);
         }
 
-        final Calendar calendar = Calendar.getInstance();
+        final DateFormatter formatter = getDateFormatter();
+        final Calendar calendar = formatter.calendar;
+        calendar.setTimeInMillis(System.currentTimeMillis());
         final int currentYear = calendar.get(Calendar.YEAR);
 
         // Year is required
-        String field = date.substring(position += 2, 6);
-        if (!TextUtils.isDigitsOnly(field)) {
-            throw new ParseException("Invalid year", position);
-        }
-        int year = parseIntSafely(field);
+        position += 2;
+        int year = parseField(date, shift, position, 6, "Invalid year");
         if (year > currentYear) {
             year = currentYear;
         }
@@ -54,56 +89,36 @@ public class Utils {
         int seconds = 0;
 
         // All succeeding fields are optional, but each preceding field must be present
-        if (date.length() > 8) {
-            field = date.substring(position, 8);
-            if (!TextUtils.isDigitsOnly(field)) {
-                throw new ParseException("Invalid month", position);
-            }
-            month = parseIntSafely(field) - 1;
+        if (length > 8) {
+            month = parseField(date, shift, position, 8, "Invalid month") - 1;
             if (month > 11) {
                 throw new ParseException("Invalid month", position);
             }
             position += 2;
         }
-        if (date.length() > 10) {
-            field = date.substring(8, 10);
-            if (!TextUtils.isDigitsOnly(field)) {
-                throw new ParseException("Invalid day", position);
-            }
-            day = parseIntSafely(field);
+        if (length > 10) {
+            day = parseField(date, shift, 8, 10, "Invalid day");
             if (day > 31) {
                 throw new ParseException("Invalid day", position);
             }
             position += 2;
         }
-        if (date.length() > 12) {
-            field = date.substring(10, 12);
-            if (!TextUtils.isDigitsOnly(field)) {
-                throw new ParseException("Invalid hours", position);
-            }
-            hours = parseIntSafely(field);
+        if (length > 12) {
+            hours = parseField(date, shift, 10, 12, "Invalid hours");
             if (hours > 23) {
                 throw new ParseException("Invalid hours", position);
             }
             position += 2;
         }
-        if (date.length() > 14) {
-            field = date.substring(12, 14);
-            if (!TextUtils.isDigitsOnly(field)) {
-                throw new ParseException("Invalid minutes", position);
-            }
-            minutes = parseIntSafely(field);
+        if (length > 14) {
+            minutes = parseField(date, shift, 12, 14, "Invalid minutes");
             if (minutes > 59) {
                 throw new ParseException("Invalid minutes", position);
             }
             position += 2;
         }
-        if (date.length() > 16) {
-            field = date.substring(14, 16);
-            if (!TextUtils.isDigitsOnly(field)) {
-                throw new ParseException("Invalid seconds", position);
-            }
-            seconds = parseIntSafely(field);
+        if (length > 16) {
+            seconds = parseField(date, shift, 14, 16, "Invalid seconds");
             if (seconds > 59) {
                 throw new ParseException("Invalid seconds", position);
             }
@@ -111,53 +126,46 @@ public class Utils {
         }
 
 
-        if (date.length() > position) {
+        if (length > position) {
             int offsetHours = 0;
             int offsetMinutes = 0;
 
-            final char utRel = date.charAt(position);
-            if (utRel != '\u002D' && utRel != '\u002B' && utRel != '\u005A') {
+            final char utRel = date.charAt(position + shift);
+            if (utRel != '-' && utRel != '+' && utRel != 'Z') {
                 throw new ParseException("Invalid UT relation", position);
             }
 
             position++;
 
-            if (date.length() > position + 2) {
-                field = date.substring(position, position + 2);
-                if (!TextUtils.isDigitsOnly(field)) {
-                    throw new ParseException("Invalid UTC offset hours", position);
-                }
-                offsetHours = parseIntSafely(field);
+            if (length > position + 2) {
+                offsetHours = parseField(date, shift, position, position + 2, "Invalid UTC offset hours");
                 final int offsetHoursMinutes = offsetHours * 100 + offsetMinutes;
 
                 // Validate UTC offset (UTC-12:00 to UTC+14:00)
-                if ((utRel == '\u002D' && offsetHoursMinutes > 1200) ||
-                        (utRel == '\u002B' && offsetHoursMinutes > 1400)) {
+                if ((utRel == '-' && offsetHoursMinutes > 1200) ||
+                        (utRel == '+' && offsetHoursMinutes > 1400)) {
                     throw new ParseException("Invalid UTC offset hours", position);
                 }
 
                 position += 2;
 
                 // Apostrophe shall succeed HH and precede mm
-                if (date.charAt(position) != '\'') {
+                if (date.charAt(position + shift) != '\'') {
                     throw new ParseException("Expected apostrophe", position);
                 }
 
                 position++;
 
-                if (date.length() > position + 2) {
-                    field = date.substring(position, position + 2);
-                    if (!TextUtils.isDigitsOnly(field)) {
-                        throw new ParseException("Invalid UTC offset minutes", position);
-                    }
-                    offsetMinutes = parseIntSafely(field);
+                if (length > position + 2) {
+                    offsetMinutes = parseField(date, shift, position, position + 2,
+                            "Invalid UTC offset minutes");
                     if (offsetMinutes > 59) {
                         throw new ParseException("Invalid UTC offset minutes", position);
                     }
                     position += 2;
 
                     // Apostrophe shall succeed mm
-                    if (date.charAt(position) != '\'') {
+                    if (date.charAt(position + shift) != '\'') {
                         throw new ParseException("Expected apostrophe", position);
                     }
                 }
@@ -165,11 +173,11 @@ public class Utils {
 
 
             switch (utRel) {
-                case '\u002D':
+                case '-':
                     hours -= offsetHours;
                     minutes -= offsetMinutes;
                     break;
-                case '\u002B':
+                case '+':
                     hours += offsetHours;
                     minutes += offsetMinutes;
                     break;
@@ -181,8 +189,6 @@ public class Utils {
 
         calendar.set(year, month, day, hours, minutes, seconds);
 
-        return DateFormat
-                .getDateTimeInstance(DateFormat.DEFAULT, DateFormat.LONG)
-                .format(calendar.getTime());
+        return formatter.format.format(calendar.getTime());
     }
 }
@@ -0,0 +1,100 @@
+package app.grapheneos.pdfviewer;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    The viewer page and its scripts, read from the assets once and then served from
+    memory. They ship in the APK and cannot change while the process lives, so every
+    later open of a document skips the asset I/O.
+*/
+
+final class ViewerAssets {
+    static final String[] PATHS = {
+        "/viewer/index.html",
+        "/viewer/raster.html",
+        "/viewer/main.css",
+        "/viewer/js/index.js",
+        "/viewer/js/raster.js",
+        "/viewer/js/render_worker.js",
+        "/viewer/js/worker.js"
+    };
+
+    private static final Map<String, byte[]> sCache = new ConcurrentHashMap<>();
+    private static final AtomicBoolean sPreloading = new AtomicBoolean();
+
+    private ViewerAssets() {}
+
+    // Contents of the asset at path, relative to the assets root with a leading slash,
+    // or null when it cannot be read
+    @Nullable
+    static InputStream open(@NonNull Context context, @NonNull String path) {
+        byte[] bytes = sCache.get(path);
+        if (bytes == null) {
+            try {
+                bytes = read(context, path);
+            } catch (IOException e) {
+                Log.w(PdfViewer.TAG, "failed to read asset " + path, e);
+                return null;
+            }
+            sCache.put(path, bytes);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    // Read every viewer asset into memory, on the calling thread
+    static void preload(@NonNull Context context) {
+        for (final String path : PATHS) {
+            if (!sCache.containsKey(path)) {
+                try {
+                    sCache.put(path, read(context, path));
+                } catch (IOException e) {
+                    Log.w(PdfViewer.TAG, "failed to preload asset " + path, e);
+                }
+            }
+        }
+    }
+
+    // Read every viewer asset into memory on a background thread, unless a preload is
+    // already running
+    static void preloadAsync(@NonNull Context context) {
+        if (!sPreloading.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(() -> {
+            try {
+                preload(context);
+            } finally {
+                sPreloading.set(false);
+            }
+        }, "ViewerAssets").start();
+    }
+
+    // Drop the cached assets, which are read again on the next request
+    static void clear() {
+        sCache.clear();
+    }
+
+    private static byte[] read(Context context, String path) throws IOException {
+        try (InputStream inputStream = context.getAssets().open(path.substring(1))) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(inputStream.available(), 4096));
+            final byte[] buffer = new byte[16384];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package app.grapheneos.pdfviewer;
+
+import android.net.Uri;
+import android.os.Build;
+import android.util.SparseArray;
+import android.webkit.ValueCallback;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
+import android.webkit.WebView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/*
+ * Sends commands to the viewer as JSON messages over a WebMessagePort, so that frequent
+ * commands such as zoom updates do not compile a new script every time. Replies come
+ * back on the port tagged with the id of their request. Until the port is connected,
+ * and on releases without message ports, commands are evaluated as script instead.
+ */
+class ViewerCommandChannel {
+    static final String LOAD_DOCUMENT = "loadDocument";
+    static final String RENDER_PAGE = "renderPage";
+    static final String GO_TO_PAGE = "goToPage";
+    static final String SLIDE_TO_PAGE = "slideToPage";
+    static final String PREPARE_PAGE = "preparePage";
+    static final String SET_CONTINUOUS_SCROLL = "setContinuousScroll";
+    static final String SET_RENDER_CACHE_BUDGET = "setRenderCacheBudget";
+    static final String TRIM_MEMORY = "trimMemory";
+    static final String TOGGLE_TEXT_LAYER_VISIBILITY = "toggleTextLayerVisibility";
+    static final String IS_TEXT_SELECTED = "isTextSelected";
+    static final String FIND = "find";
+    static final String SHOW_FIND_MATCH = "showFindMatch";
+    static final String GET_RENDER_QUEUE_STATS = "getRenderQueueStats";
+
+    private static final Uri VIEWER_ORIGIN = Uri.parse("https://localhost");
+
+    private final WebView webView;
+    private final SparseArray<ValueCallback<String>> pendingReplies = new SparseArray<>();
+    private WebMessagePort port;
+    private int nextRequestId = 1;
+
+    ViewerCommandChannel(@NonNull WebView webView) {
+        this.webView = webView;
+    }
+
+    // Hand a new port to the viewer page that just finished loading
+    void connect() {
+        disconnect();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        connectPort();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void connectPort() {
+        final WebMessagePort[] ports = webView.createWebMessageChannel();
+        port = ports[0];
+        port.setWebMessageCallback(new WebMessagePort.WebMessageCallback() {
+            @Override
+            public void onMessage(WebMessagePort messagePort, WebMessage message) {
+                if (messagePort == port) {
+                    onReply(message.getData());
+                }
+            }
+        });
+        webView.postWebMessage(new WebMessage("connect", new WebMessagePort[]{ports[1]}), VIEWER_ORIGIN);
+    }
+
+    // Drop the port of a page that is going away, along with the replies it owed
+    void disconnect() {
+        if (port != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            port.close();
+        }
+        port = null;
+        pendingReplies.clear();
+    }
+
+    // arguments is a JSON array of the arguments of the command, or null for none
+    void post(@NonNull String command, @Nullable String arguments) {
+        send(command, arguments, 0, null);
+    }
+
+    // Send a command whose result is passed to callback as JSON
+    void request(@NonNull String command, @Nullable String arguments, @NonNull ValueCallback<String> callback) {
+        final int id = nextRequestId++;
+        send(command, arguments, id, callback);
+    }
+
+    private void send(String command, String arguments, int id, ValueCallback<String> callback) {
+        final String message = "{\"command\": \"" + command + "\"" +
+            (arguments != null ? ", \"arguments\": " + arguments : "") +
+            (id != 0 ? ", \"id\": " + id : "") + "}";
+        if (port == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            webView.evaluateJavascript("onViewerCommand(" + message + ")", callback);
+            return;
+        }
+        if (callback != null) {
+            pendingReplies.put(id, callback);
+        }
+        postMessage(message);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void postMessage(String message) {
+        port.postMessage(new WebMessage(message));
+    }
+
+    // Replies are the request id and the JSON result separated by a colon
+    private void onReply(String reply) {
+        final int separator = reply.indexOf(':');
+        if (separator == -1) {
+            return;
+        }
+        final int id;
+        try {
+            id = Integer.parseInt(reply.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        final ValueCallback<String> callback = pendingReplies.get(id);
+        if (callback != null) {
+            pendingReplies.remove(id);
+            callback.onReceiveValue(reply.substring(separator + 1));
+        }
+    }
+}
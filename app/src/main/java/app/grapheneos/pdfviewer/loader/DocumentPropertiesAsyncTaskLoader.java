@@ -6,23 +6,38 @@ import androidx.annotation.Nullable;
 import androidx.loader.content.AsyncTaskLoader;
 
 import java.util.List;
+import java.util.Map;
 
 public class DocumentPropertiesAsyncTaskLoader extends AsyncTaskLoader<List<CharSequence>> {
 
     public static final String TAG = "DocumentPropertiesLoader";
 
     public static final int ID = 1;
+    // Loader of the properties read by PdfProbe, kept apart from the pdf.js ones
+    public static final int PROBE_ID = 2;
 
     private final String mProperties;
+    private final Map<String, String> mInfo;
     private final int mNumPages;
 
     String fileName;
     Long fileSize;
 
     public DocumentPropertiesAsyncTaskLoader(Context context, String properties, int numPages, String fileName, Long fileSize) {
+        this(context, properties, null, numPages, fileName, fileSize);
+    }
+
+    // Build the properties from the document information read by PdfProbe rather than
+    // from the JSON sent by pdf.js
+    public DocumentPropertiesAsyncTaskLoader(Context context, Map<String, String> info, int numPages, String fileName, Long fileSize) {
+        this(context, null, info, numPages, fileName, fileSize);
+    }
+
+    private DocumentPropertiesAsyncTaskLoader(Context context, String properties, Map<String, String> info, int numPages, String fileName, Long fileSize) {
         super(context);
 
         mProperties = properties;
+        mInfo = info;
         mNumPages = numPages;
         this.fileName = fileName;
         this.fileSize = fileSize;
@@ -43,7 +58,8 @@ public class DocumentPropertiesAsyncTaskLoader extends AsyncTaskLoader<List<Char
                 mProperties,
                 mNumPages,
                 fileName,
-                fileSize
+                fileSize,
+                mInfo
         );
 
         return loader.loadAsList();
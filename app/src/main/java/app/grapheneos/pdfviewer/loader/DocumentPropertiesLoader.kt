@@ -9,13 +9,16 @@ import android.text.style.StyleSpan
 import android.util.Log
 import app.grapheneos.pdfviewer.R
 import org.json.JSONException
+import java.text.ParseException
 
-class DocumentPropertiesLoader(
+class DocumentPropertiesLoader @JvmOverloads constructor(
     private val context: Context,
-    private val properties: String,
+    private val properties: String?,
     private val numPages: Int,
     private val fileName: String,
     private val fileSize: Long,
+    // Document information read by PdfProbe, used instead of properties when set
+    private val info: Map<String, String>? = null,
 ) {
 
     fun loadAsList(): List<CharSequence> {
@@ -59,17 +62,20 @@ class DocumentPropertiesLoader(
     }
 
     private fun getPDFJsProperties(): Map<DocumentProperty, String> {
+        val invalidDate = context.getString(R.string.document_properties_invalid_date)
+        val parseExceptionListener = { parseException: ParseException, value: String ->
+            Log.w(
+                DocumentPropertiesAsyncTaskLoader.TAG,
+                "${parseException.message} for $value at offset: ${parseException.errorOffset}"
+            )
+        }
+        val converter = if (info != null) {
+            PDFJsPropertiesToDocumentPropertyConverter(info, invalidDate, parseExceptionListener)
+        } else {
+            PDFJsPropertiesToDocumentPropertyConverter(properties ?: "{}", invalidDate, parseExceptionListener)
+        }
         return try {
-            PDFJsPropertiesToDocumentPropertyConverter(
-                properties,
-                context.getString(R.string.document_properties_invalid_date),
-                parseExceptionListener = { parseException, value ->
-                    Log.w(
-                        DocumentPropertiesAsyncTaskLoader.TAG,
-                        "${parseException.message} for $value at offset: ${parseException.errorOffset}"
-                    )
-                }
-            ).convert()
+            converter.convert()
         } catch (e: JSONException) {
             Log.w(
                 DocumentPropertiesAsyncTaskLoader.TAG,
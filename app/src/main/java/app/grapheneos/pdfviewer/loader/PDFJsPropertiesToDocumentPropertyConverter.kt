@@ -6,30 +6,47 @@ import org.json.JSONObject
 import java.text.ParseException
 import kotlin.jvm.Throws
 
-class PDFJsPropertiesToDocumentPropertyConverter(
-    private val properties: String,
+class PDFJsPropertiesToDocumentPropertyConverter private constructor(
+    private val properties: String?,
+    private val info: Map<String, String>?,
     private val propertyInvalidDate: String,
     private val parseExceptionListener: (e: ParseException, value: String) -> Unit
 ) {
 
+    constructor(
+        properties: String,
+        propertyInvalidDate: String,
+        parseExceptionListener: (e: ParseException, value: String) -> Unit
+    ) : this(properties, null, propertyInvalidDate, parseExceptionListener)
+
+    // Document information read from the file by PdfProbe, under the same keys as pdf.js
+    constructor(
+        info: Map<String, String>,
+        propertyInvalidDate: String,
+        parseExceptionListener: (e: ParseException, value: String) -> Unit
+    ) : this(null, info, propertyInvalidDate, parseExceptionListener)
+
     @Throws(JSONException::class)
     fun convert(): Map<DocumentProperty, String> {
         val result = mutableMapOf<DocumentProperty, String>()
 
-        val json = JSONObject(properties)
-        addJsonProperties(json, result)
+        if (info != null) {
+            addProperties(result) { key -> info[key] ?: DEFAULT_VALUE }
+        } else {
+            val json = JSONObject(properties!!)
+            addProperties(result) { key -> json.optString(key, DEFAULT_VALUE) }
+        }
         return result
     }
 
-    private fun addJsonProperties(
-        json: JSONObject,
-        collections: MutableMap<DocumentProperty, String>
+    private fun addProperties(
+        collections: MutableMap<DocumentProperty, String>,
+        valueOf: (key: String) -> String
     ) {
         for (documentProperty in DocumentProperty.values()) {
             val key = documentProperty.key
             if (key.isEmpty()) continue
-            val value = json.optString(key, DEFAULT_VALUE)
-            collections[documentProperty] = prettify(documentProperty, value)
+            collections[documentProperty] = prettify(documentProperty, valueOf(key))
         }
     }
 
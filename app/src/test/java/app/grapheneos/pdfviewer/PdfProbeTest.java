@@ -0,0 +1,147 @@
+package app.grapheneos.pdfviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class PdfProbeTest {
+    private static PdfProbe.Result probe(String document) throws IOException {
+        final byte[] bytes = document.getBytes(StandardCharsets.ISO_8859_1);
+        return PdfProbe.probe(new ByteArrayDataSource(new ByteArrayInputStream(bytes)));
+    }
+
+    private static String repeat(String text, int count) {
+        final StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    // Document with objects 1 to objects.length stored in the file and listed in a
+    // classic cross-reference table
+    private static String xrefTableDocument(String trailerEntries, String... objects) {
+        final StringBuilder document = new StringBuilder("%PDF-1.7\n");
+        final long[] offsets = new long[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            offsets[i] = document.length();
+            document.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+        }
+        final int xref = document.length();
+        document.append("xref\n0 ").append(objects.length + 1).append('\n');
+        document.append("0000000000 65535 f \n");
+        for (final long offset : offsets) {
+            document.append(String.format("%010d 00000 n \n", offset));
+        }
+        document.append("trailer\n<< /Size ").append(objects.length + 1).append(" /Root 1 0 R ")
+                .append(trailerEntries).append(" >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+        return document.toString();
+    }
+
+    // Document with objects 1 to objects.length stored in the file and the objects of
+    // compressed, pairs of object number and the object stream holding it, listed as
+    // compressed in a cross-reference stream
+    private static String xrefStreamDocument(String trailerEntries, String[] objects, int[][] compressed) {
+        int size = objects.length + 1;
+        for (final int[] object : compressed) {
+            size = Math.max(size, object[0] + 1);
+        }
+        final int xrefNumber = size;
+        size++;
+        final int[][] rows = new int[size][];
+        rows[0] = new int[]{0, 0, 0xffff};
+        for (final int[] object : compressed) {
+            rows[object[0]] = new int[]{2, object[1], 0};
+        }
+
+        final StringBuilder document = new StringBuilder("%PDF-1.7\n");
+        for (int i = 0; i < objects.length; i++) {
+            rows[i + 1] = new int[]{1, document.length(), 0};
+            document.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+        }
+        final int xref = document.length();
+        rows[xrefNumber] = new int[]{1, xref, 0};
+
+        // Fields 1, 4 and 2 bytes wide
+        final StringBuilder data = new StringBuilder();
+        for (final int[] row : rows) {
+            final int[] fields = row != null ? row : new int[]{0, 0, 0};
+            data.append((char) fields[0]);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                data.append((char) ((fields[1] >> shift) & 0xff));
+            }
+            data.append((char) ((fields[2] >> 8) & 0xff)).append((char) (fields[2] & 0xff));
+        }
+        document.append(xrefNumber).append(" 0 obj\n<< /Type /XRef /Size ").append(size)
+                .append(" /W [1 4 2] /Length ").append(data.length()).append(" /Root 1 0 R ")
+                .append(trailerEntries).append(" >>\nstream\n").append(data)
+                .append("\nendstream\nendobj\nstartxref\n").append(xref).append("\n%%EOF\n");
+        return document.toString();
+    }
+
+    @Test
+    public void readsPageCountAndInfo() throws IOException {
+        final PdfProbe.Result result = probe(xrefTableDocument("/Info 3 0 R",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [] /Count 3 >>",
+                "<< /Title (Probe) >>"));
+        assertEquals("1.7", result.version);
+        assertEquals(3, result.pageCount);
+        assertEquals("Probe", result.info.get("Title"));
+    }
+
+    @Test
+    public void selfReferentialObjectStreamFails() {
+        // Object 2 is in object stream 3, which is said to be in itself
+        assertThrows(IOException.class, () -> probe(xrefStreamDocument("/Info 2 0 R",
+                new String[]{"<< /Type /Catalog /Pages 2 0 R >>"},
+                new int[][]{{2, 3}, {3, 3}})));
+    }
+
+    @Test
+    public void objectStreamCycleFails() {
+        assertThrows(IOException.class, () -> probe(xrefStreamDocument("/Info 2 0 R",
+                new String[]{"<< /Type /Catalog /Pages 2 0 R >>"},
+                new int[][]{{2, 3}, {3, 4}, {4, 3}})));
+    }
+
+    @Test
+    public void objectStreamCycleLeavesPageCountUnknown() throws IOException {
+        final PdfProbe.Result result = probe(xrefStreamDocument("",
+                new String[]{"<< /Type /Catalog /Pages 2 0 R >>"},
+                new int[][]{{2, 3}, {3, 3}}));
+        assertEquals(-1, result.pageCount);
+    }
+
+    @Test
+    public void deeplyNestedArraysFail() {
+        final int depth = 100000;
+        assertThrows(IOException.class, () -> probe(xrefTableDocument(
+                "/Deep " + repeat("[", depth) + repeat("]", depth),
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [] /Count 1 >>")));
+    }
+
+    @Test
+    public void deeplyNestedDictionariesFail() {
+        final int depth = 100000;
+        assertThrows(IOException.class, () -> probe(xrefTableDocument("/Info 3 0 R",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [] /Count 1 >>",
+                repeat("<< /A ", depth) + "1" + repeat(" >>", depth))));
+    }
+
+    @Test
+    public void deeplyNestedPageTreeLeavesPageCountUnknown() throws IOException {
+        final int depth = 100000;
+        final PdfProbe.Result result = probe(xrefTableDocument("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids " + repeat("[", depth) + repeat("]", depth) + " /Count 1 >>"));
+        assertEquals(-1, result.pageCount);
+    }
+}
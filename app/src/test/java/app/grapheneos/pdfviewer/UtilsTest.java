@@ -0,0 +1,382 @@
+package app.grapheneos.pdfviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class UtilsTest {
+    private interface DateParser {
+        String parse(String date) throws ParseException;
+    }
+
+    private static final String[] VALID_DATES = {
+        "D:2020",
+        "D:2020Z",
+        "D:202003Z",
+        "D:20200315Z",
+        "D:2020031514Z",
+        "D:202003151430Z",
+        "D:20200315143059Z",
+        "D:99991231235959Z",
+        "D:0001",
+        "D:\u0662\u0660\u0662\u0660",
+        // Without the D: prefix, which shifts every position by two
+        "2020",
+        "2020Z",
+        "20200315Z",
+        "20200315143059Z",
+    };
+
+    private static final String[] OFFSET_DATES = {
+        "D:20200315143059+",
+        "D:20200315143059-",
+        "D:20200315143059+05",
+        "D:20200315143059+05'",
+        "D:20200315143059+05'30",
+        "D:20200315143059+05'30'",
+        "D:20200315143059-08'00'",
+        "D:20200315143059-12'00'",
+        "D:20200315143059+14'00'",
+        "D:20200101000000-12'59'",
+        "D:20201231235959+14'59'",
+        "D:20200315143059+00'00'",
+        "20200315143059+05'30'",
+        "20200315143059-08'00'",
+        "2020-",
+    };
+
+    private static final String[] MALFORMED_DATES = {
+        "",
+        "D:",
+        "D:20",
+        "D:202",
+        "D:20200315143059+05'30'0",
+        // A field is only read when more text follows it, so a date that ends with a
+        // field after the year has always been rejected
+        "D:202003",
+        "D:20200315",
+        "D:20200315143059",
+        "20200315143059",
+        "D:abcd",
+        "D:20a0",
+        "D:20201",
+        "D:20201x",
+        "D:202013",
+        "D:20200x",
+        "D:20200332",
+        "D:2020031x",
+        "D:2020031524",
+        "D:202003152x",
+        "D:202003151460",
+        "D:20200315146x",
+        "D:20200315143060",
+        "D:2020031514305x",
+        "D:20200315143059X",
+        "D:202003+01'",
+        "D:20200315143059+15'",
+        "D:20200315143059-13'",
+        "D:20200315143059+0x'",
+        "D:20200315143059+0530",
+        "D:20200315143059+05x",
+        "D:20200315143059+05'60'",
+        "D:20200315143059+05'3x'",
+        "D:20200315143059+05'30x",
+        "20",
+        "abcd",
+        "2020031x",
+        "20200315143059X",
+        "20200315143059+15'",
+        "20200315143059+05'30x",
+    };
+
+    private Locale defaultLocale;
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setDefaults() {
+        defaultLocale = Locale.getDefault();
+        defaultTimeZone = TimeZone.getDefault();
+        Locale.setDefault(Locale.US);
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void restoreDefaults() {
+        Locale.setDefault(defaultLocale);
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    // The result of parsing date, or the type, message and offset of the exception it
+    // throws
+    private static String outcome(DateParser parser, String date) {
+        try {
+            return parser.parse(date);
+        } catch (ParseException e) {
+            return "ParseException: " + e.getMessage() + " at " + e.getErrorOffset();
+        } catch (RuntimeException e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    private static void assertSameAsLegacy(String[] dates) {
+        for (final String date : dates) {
+            assertEquals(date, outcome(UtilsTest::legacyParseDate, date), outcome(Utils::parseDate, date));
+        }
+    }
+
+    @Test
+    public void validDatesMatchLegacy() {
+        assertSameAsLegacy(VALID_DATES);
+    }
+
+    @Test
+    public void offsetDatesMatchLegacy() {
+        assertSameAsLegacy(OFFSET_DATES);
+    }
+
+    @Test
+    public void malformedDatesMatchLegacy() {
+        assertSameAsLegacy(MALFORMED_DATES);
+    }
+
+    @Test
+    public void malformedDatesFail() {
+        for (final String date : MALFORMED_DATES) {
+            assertThrows(date, ParseException.class, () -> Utils.parseDate(date));
+        }
+    }
+
+    @Test
+    public void prefixIsOptional() throws ParseException {
+        assertEquals(Utils.parseDate("D:20200315143059+05'30'"), Utils.parseDate("20200315143059+05'30'"));
+        assertEquals(Utils.parseDate("D:2020"), Utils.parseDate("2020"));
+    }
+
+    @Test
+    public void offsetsShiftTheTime() throws ParseException {
+        assertEquals(Utils.parseDate("D:20200315093059Z"), Utils.parseDate("D:20200315143059-05'00'"));
+        assertEquals(Utils.parseDate("D:20200315200059Z"), Utils.parseDate("D:20200315143059+05'30'"));
+        assertEquals(Utils.parseDate("D:20200315143059Z"), Utils.parseDate("D:20200315143059+00'00'"));
+    }
+
+    @Test
+    public void errorOffsetsCountThePrefix() {
+        final ParseException withPrefix = assertThrows(ParseException.class,
+                () -> Utils.parseDate("D:20200315143059+05'3x'"));
+        final ParseException withoutPrefix = assertThrows(ParseException.class,
+                () -> Utils.parseDate("20200315143059+05'3x'"));
+        assertEquals(20, withPrefix.getErrorOffset());
+        assertEquals(20, withoutPrefix.getErrorOffset());
+    }
+
+    @Test
+    public void followsDefaultLocaleAndTimeZoneChanges() {
+        final String[] dates = {"D:20200315143059Z", "D:20200315143059+05'30'", "20200315Z"};
+        assertSameAsLegacy(dates);
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        assertSameAsLegacy(dates);
+        Locale.setDefault(Locale.GERMANY);
+        assertSameAsLegacy(dates);
+        Locale.setDefault(Locale.JAPAN);
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+        assertSameAsLegacy(dates);
+    }
+
+    // TextUtils.isDigitsOnly, which is not available on the JVM
+    private static boolean isDigitsOnly(CharSequence str) {
+        final int len = str.length();
+        for (int cp, i = 0; i < len; i += Character.charCount(cp)) {
+            cp = Character.codePointAt(str, i);
+            if (!Character.isDigit(cp)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseIntSafely(String field) throws ParseException  {
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Error while parsing int", -1);
+        }
+    }
+
+    // Utils.parseDate as it was before it stopped building substrings and a formatter for
+    // every call, kept to check that the results are unchanged
+    private static String legacyParseDate(String date) throws ParseException {
+        int position = 0;
+
+        // D: prefix is optional for PDF < v1.7; required for PDF v1.7
+        if (!date.startsWith("D:")) {
+            date = "D:" + date;
+        }
+        if (date.length() < 6 || date.length() > 23) {
+            throw new ParseException("Invalid datetime length", position);
+        }
+
+        final Calendar calendar = Calendar.getInstance();
+        final int currentYear = calendar.get(Calendar.YEAR);
+
+        // Year is required
+        String field = date.substring(position += 2, 6);
+        if (!isDigitsOnly(field)) {
+            throw new ParseException("Invalid year", position);
+        }
+        int year = parseIntSafely(field);
+        if (year > currentYear) {
+            year = currentYear;
+        }
+
+        position += 4;
+
+        // Default value for month and day shall be 1 (calendar month starts at 0 in Java 7),
+        // all others default to 0
+        int month = 0;
+        int day = 1;
+        int hours = 0;
+        int minutes = 0;
+        int seconds = 0;
+
+        // All succeeding fields are optional, but each preceding field must be present
+        if (date.length() > 8) {
+            field = date.substring(position, 8);
+            if (!isDigitsOnly(field)) {
+                throw new ParseException("Invalid month", position);
+            }
+            month = parseIntSafely(field) - 1;
+            if (month > 11) {
+                throw new ParseException("Invalid month", position);
+            }
+            position += 2;
+        }
+        if (date.length() > 10) {
+            field = date.substring(8, 10);
+            if (!isDigitsOnly(field)) {
+                throw new ParseException("Invalid day", position);
+            }
+            day = parseIntSafely(field);
+            if (day > 31) {
+                throw new ParseException("Invalid day", position);
+            }
+            position += 2;
+        }
+        if (date.length() > 12) {
+            field = date.substring(10, 12);
+            if (!isDigitsOnly(field)) {
+                throw new ParseException("Invalid hours", position);
+            }
+            hours = parseIntSafely(field);
+            if (hours > 23) {
+                throw new ParseException("Invalid hours", position);
+            }
+            position += 2;
+        }
+        if (date.length() > 14) {
+            field = date.substring(12, 14);
+            if (!isDigitsOnly(field)) {
+                throw new ParseException("Invalid minutes", position);
+            }
+            minutes = parseIntSafely(field);
+            if (minutes > 59) {
+                throw new ParseException("Invalid minutes", position);
+            }
+            position += 2;
+        }
+        if (date.length() > 16) {
+            field = date.substring(14, 16);
+            if (!isDigitsOnly(field)) {
+                throw new ParseException("Invalid seconds", position);
+            }
+            seconds = parseIntSafely(field);
+            if (seconds > 59) {
+                throw new ParseException("Invalid seconds", position);
+            }
+            position += 2;
+        }
+
+
+        if (date.length() > position) {
+            int offsetHours = 0;
+            int offsetMinutes = 0;
+
+            final char utRel = date.charAt(position);
+            if (utRel != '\u002D' && utRel != '\u002B' && utRel != '\u005A') {
+                throw new ParseException("Invalid UT relation", position);
+            }
+
+            position++;
+
+            if (date.length() > position + 2) {
+                field = date.substring(position, position + 2);
+                if (!isDigitsOnly(field)) {
+                    throw new ParseException("Invalid UTC offset hours", position);
+                }
+                offsetHours = parseIntSafely(field);
+                final int offsetHoursMinutes = offsetHours * 100 + offsetMinutes;
+
+                // Validate UTC offset (UTC-12:00 to UTC+14:00)
+                if ((utRel == '\u002D' && offsetHoursMinutes > 1200) ||
+                        (utRel == '\u002B' && offsetHoursMinutes > 1400)) {
+                    throw new ParseException("Invalid UTC offset hours", position);
+                }
+
+                position += 2;
+
+                // Apostrophe shall succeed HH and precede mm
+                if (date.charAt(position) != '\'') {
+                    throw new ParseException("Expected apostrophe", position);
+                }
+
+                position++;
+
+                if (date.length() > position + 2) {
+                    field = date.substring(position, position + 2);
+                    if (!isDigitsOnly(field)) {
+                        throw new ParseException("Invalid UTC offset minutes", position);
+                    }
+                    offsetMinutes = parseIntSafely(field);
+                    if (offsetMinutes > 59) {
+                        throw new ParseException("Invalid UTC offset minutes", position);
+                    }
+                    position += 2;
+
+                    // Apostrophe shall succeed mm
+                    if (date.charAt(position) != '\'') {
+                        throw new ParseException("Expected apostrophe", position);
+                    }
+                }
+            }
+
+
+            switch (utRel) {
+                case '\u002D':
+                    hours -= offsetHours;
+                    minutes -= offsetMinutes;
+                    break;
+                case '\u002B':
+                    hours += offsetHours;
+                    minutes += offsetMinutes;
+                    break;
+                default:
+                    // "Z" means equal to UTC
+                    break;
+            }
+        }
+
+        calendar.set(year, month, day, hours, minutes, seconds);
+
+        return DateFormat
+                .getDateTimeInstance(DateFormat.DEFAULT, DateFormat.LONG)
+                .format(calendar.getTime());
+    }
+}
@@ -0,0 +1,225 @@
+import { getDocument } from "pdfjs-dist/legacy/build/pdf.mjs";
+import fs from "node:fs/promises";
+import path from "node:path";
+import process from "node:process";
+import v8 from "node:v8";
+
+/**
+ * Loads every PDF of a corpus with the pdfjs-dist version the viewer is built with and
+ * reports how long the steps of the rendering pipeline take, so that results can be
+ * compared between commits:
+ *
+ *     node --expose-gc benchmark.js [--iterations N] [--pages N] [--output FILE] PATH...
+ *
+ * PATH may be a PDF or a directory searched for PDFs. Rasterizing needs a canvas, which
+ * plain Node does not have, so the operator list is measured instead; it is what the
+ * worker hands to page.render().
+ *
+ * @typedef Options
+ * @property {number} iterations
+ * @property {number} pages
+ * @property {string | null} output
+ * @property {string[]} paths
+ */
+
+/**
+ * @param {string[]} args
+ * @returns {Options}
+ */
+function parseArgs(args) {
+    const options = { iterations: 3, pages: Infinity, output: null, paths: [] };
+    for (let i = 0; i < args.length; i++) {
+        const arg = args[i];
+        if (arg === "--iterations") {
+            options.iterations = Number.parseInt(args[++i], 10);
+        } else if (arg === "--pages") {
+            options.pages = Number.parseInt(args[++i], 10);
+        } else if (arg === "--output") {
+            options.output = args[++i];
+        } else {
+            options.paths.push(arg);
+        }
+    }
+    if (options.paths.length === 0 || !(options.iterations > 0) || !(options.pages > 0)) {
+        throw new Error("usage: node --expose-gc benchmark.js [--iterations N] [--pages N] [--output FILE] PATH...");
+    }
+    return options;
+}
+
+/**
+ * @param {string[]} paths
+ * @returns {Promise<string[]>}
+ */
+async function findDocuments(paths) {
+    const documents = [];
+    for (const entry of paths) {
+        const stat = await fs.stat(entry);
+        if (stat.isDirectory()) {
+            const children = await fs.readdir(entry);
+            documents.push(...await findDocuments(children.sort().map((child) => path.join(entry, child))));
+        } else if (entry.toLowerCase().endsWith(".pdf")) {
+            documents.push(entry);
+        }
+    }
+    return documents;
+}
+
+function collectGarbage() {
+    if (typeof globalThis.gc === "function") {
+        globalThis.gc();
+    }
+}
+
+class HeapSampler {
+    constructor() {
+        this.peak = 0;
+    }
+
+    sample() {
+        this.peak = Math.max(this.peak, process.memoryUsage().heapUsed);
+    }
+}
+
+/**
+ * @param {number[]} samples
+ */
+function summarize(samples) {
+    if (samples.length === 0) {
+        return { count: 0, mean: 0, median: 0, p90: 0, max: 0 };
+    }
+    const sorted = [...samples].sort((a, b) => a - b);
+    const at = (fraction) => sorted[Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))];
+    return {
+        count: sorted.length,
+        mean: sorted.reduce((sum, value) => sum + value, 0) / sorted.length,
+        median: at(0.5),
+        p90: at(0.9),
+        max: sorted[sorted.length - 1]
+    };
+}
+
+/**
+ * @param {Uint8Array} data
+ * @param {number} maxPages
+ * @param {HeapSampler} heap
+ */
+async function runOnce(data, maxPages, heap) {
+    const parseStart = performance.now();
+    // pdf.js takes ownership of the buffer, so every run gets a copy
+    const loadingTask = getDocument({
+        data: data.slice(),
+        isEvalSupported: false,
+        useSystemFonts: false,
+        verbosity: 0
+    });
+    const pdfDoc = await loadingTask.promise;
+    const parseMs = performance.now() - parseStart;
+    heap.sample();
+
+    const getPageMs = [];
+    const operatorListMs = [];
+    const textContentMs = [];
+    let operators = 0;
+    let textChars = 0;
+    const numPages = Math.min(pdfDoc.numPages, maxPages);
+    for (let pageNumber = 1; pageNumber <= numPages; pageNumber++) {
+        const getPageStart = performance.now();
+        const page = await pdfDoc.getPage(pageNumber);
+        getPageMs.push(performance.now() - getPageStart);
+
+        const operatorListStart = performance.now();
+        const operatorList = await page.getOperatorList();
+        operatorListMs.push(performance.now() - operatorListStart);
+        operators += operatorList.fnArray.length;
+
+        const textContentStart = performance.now();
+        const textContent = await page.getTextContent();
+        textContentMs.push(performance.now() - textContentStart);
+        for (const item of textContent.items) {
+            if (item.str !== undefined) {
+                textChars += item.str.length;
+            }
+        }
+
+        heap.sample();
+        page.cleanup();
+    }
+    await loadingTask.destroy();
+
+    const textSeconds = textContentMs.reduce((sum, value) => sum + value, 0) / 1000;
+    return {
+        numPages: pdfDoc.numPages,
+        pagesMeasured: numPages,
+        parseMs,
+        getPageMs,
+        operatorListMs,
+        textContentMs,
+        operators,
+        textChars,
+        textCharsPerSecond: textSeconds === 0 ? 0 : textChars / textSeconds
+    };
+}
+
+/**
+ * @param {string} file
+ * @param {Options} options
+ */
+async function benchmarkDocument(file, options) {
+    const data = new Uint8Array(await fs.readFile(file));
+    const runs = [];
+    const heap = new HeapSampler();
+    for (let i = 0; i < options.iterations; i++) {
+        collectGarbage();
+        runs.push(await runOnce(data, options.pages, heap));
+    }
+    const last = runs[runs.length - 1];
+    return {
+        file,
+        bytes: data.length,
+        numPages: last.numPages,
+        pagesMeasured: last.pagesMeasured,
+        operators: last.operators,
+        textChars: last.textChars,
+        parseMs: summarize(runs.map((run) => run.parseMs)),
+        getPageMs: summarize(runs.flatMap((run) => run.getPageMs)),
+        operatorListMs: summarize(runs.flatMap((run) => run.operatorListMs)),
+        textContentMs: summarize(runs.flatMap((run) => run.textContentMs)),
+        textCharsPerSecond: summarize(runs.map((run) => run.textCharsPerSecond)),
+        peakHeapBytes: heap.peak
+    };
+}
+
+async function benchmark() {
+    const options = parseArgs(process.argv.slice(2));
+    const documents = await findDocuments(options.paths);
+    if (typeof globalThis.gc !== "function") {
+        console.error("warning: run with --expose-gc for comparable peak heap numbers");
+    }
+
+    const results = [];
+    for (const file of documents) {
+        console.error("benchmarking " + file);
+        try {
+            results.push(await benchmarkDocument(file, options));
+        } catch (error) {
+            results.push({ file, error: String(error) });
+        }
+    }
+
+    const pdfjsPackage = JSON.parse(await fs.readFile("node_modules/pdfjs-dist/package.json", "utf8"));
+    const report = {
+        pdfjsVersion: pdfjsPackage.version,
+        node: process.version,
+        heapLimitBytes: v8.getHeapStatistics().heap_size_limit,
+        iterations: options.iterations,
+        documents: results
+    };
+    const json = JSON.stringify(report, null, 2);
+    if (options.output !== null) {
+        await fs.writeFile(options.output, json + "\n");
+    } else {
+        console.log(json);
+    }
+}
+
+await benchmark();
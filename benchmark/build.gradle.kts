@@ -0,0 +1,32 @@
+// Microbenchmarks of the document properties pipeline that run on a plain JVM. The app
+// sources under test are copied in and the Android types they use are replaced by the
+// minimal stand-ins under src/stubs. The module is only included with -Pbenchmark.
+
+plugins {
+    id("kotlin")
+    application
+}
+
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+val appSources = tasks.register("appSources", Sync::class) {
+    from("../app/src/main/java") {
+        include("app/grapheneos/pdfviewer/Utils.java")
+        include("app/grapheneos/pdfviewer/loader/**")
+    }
+    into(layout.buildDirectory.dir("appSources"))
+}
+
+sourceSets {
+    main {
+        java.srcDirs("src/stubs/java", appSources)
+    }
+}
+
+application {
+    mainClass.set("app.grapheneos.pdfviewer.benchmark.Main")
+}
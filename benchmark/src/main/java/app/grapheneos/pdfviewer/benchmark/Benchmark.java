@@ -0,0 +1,96 @@
+package app.grapheneos.pdfviewer.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/*
+    Minimal benchmark harness: runs an operation for warmup rounds, then for measured
+    rounds of a fixed duration, reporting throughput and the bytes allocated per
+    operation as counted by the JVM for the benchmark thread.
+*/
+
+final class Benchmark {
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final double opsPerSecond;
+        final double minOpsPerSecond;
+        final double maxOpsPerSecond;
+        final double bytesPerOp;
+
+        Result(String name, double opsPerSecond, double minOpsPerSecond, double maxOpsPerSecond,
+                double bytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.minOpsPerSecond = minOpsPerSecond;
+            this.maxOpsPerSecond = maxOpsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        String toJson() {
+            return String.format(java.util.Locale.ROOT,
+                    "{\"name\": \"%s\", \"opsPerSecond\": %.1f, \"minOpsPerSecond\": %.1f, " +
+                    "\"maxOpsPerSecond\": %.1f, \"bytesPerOp\": %.1f}",
+                    name, opsPerSecond, minOpsPerSecond, maxOpsPerSecond, bytesPerOp);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(java.util.Locale.ROOT, "%-24s %12.0f ops/s (%.0f - %.0f) %10.1f B/op",
+                    name, opsPerSecond, minOpsPerSecond, maxOpsPerSecond, bytesPerOp);
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so that the JIT cannot drop the work producing them
+    static volatile int sink;
+
+    private Benchmark() {
+    }
+
+    static Result measure(String name, Operation operation, int warmupRounds, int rounds,
+            long roundNanos) throws Exception {
+        for (int i = 0; i < warmupRounds; i++) {
+            runRound(operation, roundNanos);
+        }
+
+        double totalOps = 0;
+        double totalNanos = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        final long allocatedStart = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < rounds; i++) {
+            final long start = System.nanoTime();
+            final long ops = runRound(operation, roundNanos);
+            final long elapsed = System.nanoTime() - start;
+            final double opsPerSecond = ops * 1e9 / elapsed;
+            min = Math.min(min, opsPerSecond);
+            max = Math.max(max, opsPerSecond);
+            totalOps += ops;
+            totalNanos += elapsed;
+        }
+        final long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedStart;
+        return new Result(name, totalOps * 1e9 / totalNanos, min, max, allocated / totalOps);
+    }
+
+    // Checking the clock every operation would dominate short operations, so it is read
+    // once per batch
+    private static long runRound(Operation operation, long roundNanos) throws Exception {
+        final long deadline = System.nanoTime() + roundNanos;
+        long ops = 0;
+        int hash = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                final Object result = operation.run();
+                hash += result != null ? result.hashCode() : 0;
+            }
+            ops += 64;
+        } while (System.nanoTime() < deadline);
+        sink += hash;
+        return ops;
+    }
+}
@@ -0,0 +1,120 @@
+package app.grapheneos.pdfviewer.benchmark;
+
+import android.content.Context;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import app.grapheneos.pdfviewer.R;
+import app.grapheneos.pdfviewer.Utils;
+import app.grapheneos.pdfviewer.loader.DocumentPropertiesLoader;
+import app.grapheneos.pdfviewer.loader.PDFJsPropertiesToDocumentPropertyConverter;
+import kotlin.Unit;
+
+/*
+    Benchmarks of the document properties pipeline, from parsing a single date up to
+    building the list shown by the properties dialog. Pass --json for machine readable
+    output, and --rounds and --round-ms to trade time for stability.
+*/
+
+public class Main {
+    // Dates as found in the wild: full ones with an offset, UTC, without the D: prefix,
+    // year only, and invalid ones that end in a ParseException
+    private static final String[] DATES = {
+        "D:20230115103045+05'30'",
+        "D:20191231235959Z",
+        "D:20080704120000-07'00'",
+        "20230115103045",
+        "D:1999",
+        "D:20231301000000",
+    };
+
+    private static final String PROPERTIES = "{" +
+        "\"PDFFormatVersion\": \"1.7\", " +
+        "\"IsLinearized\": false, " +
+        "\"IsAcroFormPresent\": false, " +
+        "\"Title\": \"Annual report 2023\", " +
+        "\"Author\": \"Finance department\", " +
+        "\"Subject\": \"Results of the fiscal year\", " +
+        "\"Keywords\": \"report, finance, 2023\", " +
+        "\"Creator\": \"Writer\", " +
+        "\"Producer\": \"LibreOffice 7.5\", " +
+        "\"CreationDate\": \"D:20230115103045+05'30'\", " +
+        "\"ModDate\": \"D:20230220081500Z\"" +
+        "}";
+
+    public static void main(String[] args) throws Exception {
+        boolean json = false;
+        int rounds = 5;
+        long roundMs = 1000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--json":
+                    json = true;
+                    break;
+                case "--rounds":
+                    rounds = Integer.parseInt(args[++i]);
+                    break;
+                case "--round-ms":
+                    roundMs = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+        final long roundNanos = roundMs * 1000 * 1000;
+        final int warmupRounds = 3;
+
+        final Context context = createContext();
+        final int[] next = {0};
+
+        final List<Benchmark.Result> results = new ArrayList<>();
+        results.add(Benchmark.measure("parseDate", () -> {
+            final String date = DATES[next[0]++ % DATES.length];
+            try {
+                return Utils.parseDate(date);
+            } catch (ParseException e) {
+                return e.getErrorOffset();
+            }
+        }, warmupRounds, rounds, roundNanos));
+        results.add(Benchmark.measure("convert", () ->
+            new PDFJsPropertiesToDocumentPropertyConverter(PROPERTIES, "Invalid date",
+                    (e, value) -> Unit.INSTANCE).convert(),
+            warmupRounds, rounds, roundNanos));
+        results.add(Benchmark.measure("loadAsList", () ->
+            new DocumentPropertiesLoader(context, PROPERTIES, 42, "report.pdf", 1234567L).loadAsList(),
+            warmupRounds, rounds, roundNanos));
+
+        if (json) {
+            final StringBuilder builder = new StringBuilder("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                builder.append("  ").append(results.get(i).toJson())
+                        .append(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            System.out.print(builder.append("]\n"));
+        } else {
+            for (final Benchmark.Result result : results) {
+                System.out.println(result);
+            }
+        }
+    }
+
+    private static Context createContext() {
+        final Context context = new Context();
+        context.putString(R.string.document_properties_invalid_date, "Invalid date");
+        context.putString(R.string.file_name, "File name");
+        context.putString(R.string.file_size, "File size");
+        context.putString(R.string.pages, "Pages");
+        context.putString(R.string.title, "Title");
+        context.putString(R.string.author, "Author");
+        context.putString(R.string.subject, "Subject");
+        context.putString(R.string.keywords, "Keywords");
+        context.putString(R.string.creation_date, "Creation date");
+        context.putString(R.string.modify_date, "Modify date");
+        context.putString(R.string.producer, "Producer");
+        context.putString(R.string.creator, "Creator");
+        context.putString(R.string.pdf_version, "PDF version");
+        return context;
+    }
+}
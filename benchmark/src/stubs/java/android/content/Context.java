@@ -0,0 +1,18 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Resolves string resources from a map filled in by the benchmark
+public class Context {
+    private final Map<Integer, String> strings = new HashMap<>();
+
+    public void putString(int id, String value) {
+        strings.put(id, value);
+    }
+
+    public String getString(int id) {
+        final String value = strings.get(id);
+        return value != null ? value : "";
+    }
+}
@@ -0,0 +1,6 @@
+package android.graphics;
+
+public class Typeface {
+    public static final int NORMAL = 0;
+    public static final int BOLD = 1;
+}
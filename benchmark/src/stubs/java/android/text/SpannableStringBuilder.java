@@ -0,0 +1,40 @@
+package android.text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps spans in a list so that building the properties list allocates about as much as
+// it does on a device
+public class SpannableStringBuilder implements Spanned {
+    private final StringBuilder text = new StringBuilder();
+    private final List<Object> spans = new ArrayList<>();
+
+    public SpannableStringBuilder append(CharSequence value) {
+        text.append(value);
+        return this;
+    }
+
+    public void setSpan(Object what, int start, int end, int flags) {
+        spans.add(what);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,15 @@
+package android.text.format;
+
+import android.content.Context;
+
+public class Formatter {
+    public static String formatFileSize(Context context, long sizeBytes) {
+        if (sizeBytes < 1000) {
+            return sizeBytes + " B";
+        }
+        if (sizeBytes < 1000 * 1000) {
+            return String.format("%.2f kB", sizeBytes / 1000f);
+        }
+        return String.format("%.2f MB", sizeBytes / (1000f * 1000f));
+    }
+}
@@ -0,0 +1,13 @@
+package android.text.style;
+
+public class StyleSpan {
+    private final int style;
+
+    public StyleSpan(int style) {
+        this.style = style;
+    }
+
+    public int getStyle() {
+        return style;
+    }
+}
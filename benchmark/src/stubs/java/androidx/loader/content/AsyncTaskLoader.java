@@ -0,0 +1,23 @@
+package androidx.loader.content;
+
+import android.content.Context;
+
+public abstract class AsyncTaskLoader<D> {
+    private final Context context;
+
+    public AsyncTaskLoader(Context context) {
+        this.context = context;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public void forceLoad() {
+    }
+
+    protected void onStartLoading() {
+    }
+
+    public abstract D loadInBackground();
+}
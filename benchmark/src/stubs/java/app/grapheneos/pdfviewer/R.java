@@ -0,0 +1,19 @@
+package app.grapheneos.pdfviewer;
+
+public final class R {
+    public static final class string {
+        public static final int document_properties_invalid_date = 1;
+        public static final int file_name = 2;
+        public static final int file_size = 3;
+        public static final int pages = 4;
+        public static final int title = 5;
+        public static final int author = 6;
+        public static final int subject = 7;
+        public static final int keywords = 8;
+        public static final int creation_date = 9;
+        public static final int modify_date = 10;
+        public static final int producer = 11;
+        public static final int creator = 12;
+        public static final int pdf_version = 13;
+    }
+}
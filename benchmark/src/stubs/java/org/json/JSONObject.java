@@ -0,0 +1,205 @@
+package org.json;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Enough of org.json to parse the document info pdf.js sends: a recursive descent parser
+// keeping strings, numbers, booleans, nested objects and arrays
+public class JSONObject {
+    private static final Object NULL = new Object() {
+        @Override
+        public String toString() {
+            return "null";
+        }
+    };
+
+    private final Map<String, Object> values = new HashMap<>();
+
+    public JSONObject(String json) throws JSONException {
+        final Parser parser = new Parser(json);
+        parser.parseObject(this);
+        parser.skipWhitespace();
+        if (parser.position != json.length()) {
+            throw new JSONException("Unexpected data after object at " + parser.position);
+        }
+    }
+
+    private JSONObject() {
+    }
+
+    public Object opt(String name) {
+        return values.get(name);
+    }
+
+    public String optString(String name, String fallback) {
+        final Object value = values.get(name);
+        return value != null ? value.toString() : fallback;
+    }
+
+    private static final class Parser {
+        final String json;
+        int position;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        char next() throws JSONException {
+            skipWhitespace();
+            if (position >= json.length()) {
+                throw new JSONException("Unexpected end of input");
+            }
+            return json.charAt(position++);
+        }
+
+        void expect(char expected) throws JSONException {
+            final char c = next();
+            if (c != expected) {
+                throw new JSONException("Expected " + expected + " at " + (position - 1));
+            }
+        }
+
+        void parseObject(JSONObject object) throws JSONException {
+            expect('{');
+            skipWhitespace();
+            if (position < json.length() && json.charAt(position) == '}') {
+                position++;
+                return;
+            }
+            while (true) {
+                expect('"');
+                final String key = parseString();
+                expect(':');
+                object.values.put(key, parseValue());
+                final char c = next();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw new JSONException("Expected , or } at " + (position - 1));
+                }
+            }
+        }
+
+        List<Object> parseArray() throws JSONException {
+            final List<Object> array = new ArrayList<>();
+            skipWhitespace();
+            if (position < json.length() && json.charAt(position) == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(parseValue());
+                final char c = next();
+                if (c == ']') {
+                    return array;
+                }
+                if (c != ',') {
+                    throw new JSONException("Expected , or ] at " + (position - 1));
+                }
+            }
+        }
+
+        Object parseValue() throws JSONException {
+            final char c = next();
+            switch (c) {
+                case '"':
+                    return parseString();
+                case '{':
+                    position--;
+                    final JSONObject object = new JSONObject();
+                    parseObject(object);
+                    return object;
+                case '[':
+                    return parseArray();
+                default:
+                    position--;
+                    return parseLiteral();
+            }
+        }
+
+        Object parseLiteral() throws JSONException {
+            final int start = position;
+            while (position < json.length() && ",}] \t\r\n".indexOf(json.charAt(position)) == -1) {
+                position++;
+            }
+            final String literal = json.substring(start, position);
+            switch (literal) {
+                case "true":
+                    return Boolean.TRUE;
+                case "false":
+                    return Boolean.FALSE;
+                case "null":
+                    return NULL;
+                default:
+                    try {
+                        final double number = Double.parseDouble(literal);
+                        if (number == Math.rint(number) && Math.abs(number) < Long.MAX_VALUE) {
+                            return (long) number;
+                        }
+                        return number;
+                    } catch (NumberFormatException e) {
+                        throw new JSONException("Invalid literal " + literal + " at " + start);
+                    }
+            }
+        }
+
+        String parseString() throws JSONException {
+            final StringBuilder builder = new StringBuilder();
+            while (position < json.length()) {
+                final char c = json.charAt(position++);
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                if (position >= json.length()) {
+                    break;
+                }
+                final char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > json.length()) {
+                            throw new JSONException("Invalid escape at " + position);
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new JSONException("Invalid escape at " + position);
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        builder.append(escaped);
+                        break;
+                }
+            }
+            throw new JSONException("Unterminated string");
+        }
+    }
+}
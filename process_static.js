@@ -20,13 +20,13 @@ async function processStatic() {
 
     await processScripts({
         rootDir,
-        entryPoints: ["js/index.js", "js/worker.js"],
+        entryPoints: ["js/index.js", "js/raster.js", "js/render_worker.js", "js/worker.js"],
         outDir,
         production: true,
     });
     await processScripts({
         rootDir,
-        entryPoints: ["js/index.js", "js/worker.js"],
+        entryPoints: ["js/index.js", "js/raster.js", "js/render_worker.js", "js/worker.js"],
         outDir: outDirDebug,
         production: false,
     });
@@ -38,7 +38,7 @@ async function processStatic() {
     });
     await processHtml({
         rootDir,
-        entryPoints: ["index.html"],
+        entryPoints: ["index.html", "raster.html"],
         outDir,
         production: true,
     });
@@ -13,3 +13,8 @@ dependencyResolutionManagement {
 }
 rootProject.name = "PdfViewer"
 include(":app")
+// The JVM benchmarks need a JDK 17 toolchain, so they are only part of the build on
+// request: ./gradlew -Pbenchmark :benchmark:run
+if (providers.gradleProperty("benchmark").isPresent) {
+    include(":benchmark")
+}
@@ -0,0 +1,123 @@
+// Least recently used cache of rendered pages bounded by the size of their canvases
+// rather than by the number of entries. Map iteration follows insertion order, so
+// moving an entry to the end on every hit keeps the least recently used one first.
+export class RenderCache {
+    constructor(budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.usedBytes = 0;
+        this.entries = new Map();
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    static key(pageNumber, zoomRatio, orientationDegrees) {
+        return pageNumber + ":" + zoomRatio + ":" + orientationDegrees;
+    }
+
+    static entryBytes(entry) {
+        return entry.canvas.width * entry.canvas.height * 4;
+    }
+
+    get size() {
+        return this.entries.size;
+    }
+
+    get(pageNumber, zoomRatio, orientationDegrees) {
+        const key = RenderCache.key(pageNumber, zoomRatio, orientationDegrees);
+        const entry = this.entries.get(key);
+        if (entry === undefined) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        this.entries.delete(key);
+        this.entries.set(key, entry);
+        return entry;
+    }
+
+    // Entry of the page with the zoom ratio closest to zoomRatio, preferring entries in
+    // orientationDegrees. Entries in other orientations can still be shown turned. Does
+    // not count as a use of the entry.
+    findClosest(pageNumber, zoomRatio, orientationDegrees) {
+        let closest = null;
+        for (const entry of this.entries.values()) {
+            if (entry.pageNumber !== pageNumber) {
+                continue;
+            }
+            if (closest === null) {
+                closest = entry;
+                continue;
+            }
+            const matches = entry.orientationDegrees === orientationDegrees;
+            const closestMatches = closest.orientationDegrees === orientationDegrees;
+            if (matches !== closestMatches ? matches :
+                    Math.abs(entry.zoomRatio - zoomRatio) < Math.abs(closest.zoomRatio - zoomRatio)) {
+                closest = entry;
+            }
+        }
+        return closest;
+    }
+
+    has(pageNumber, zoomRatio, orientationDegrees) {
+        return this.entries.has(RenderCache.key(pageNumber, zoomRatio, orientationDegrees));
+    }
+
+    put(entry) {
+        const key = RenderCache.key(entry.pageNumber, entry.zoomRatio, entry.orientationDegrees);
+        const previous = this.entries.get(key);
+        if (previous !== undefined) {
+            this.entries.delete(key);
+            this.usedBytes -= previous.bytes;
+        }
+        entry.bytes = RenderCache.entryBytes(entry);
+        this.entries.set(key, entry);
+        this.usedBytes += entry.bytes;
+        this.trim(this.budgetBytes);
+    }
+
+    // Evict least recently used entries until at most budgetBytes are used, always
+    // keeping the most recent entry so that an oversized page can still be shown
+    trim(budgetBytes) {
+        for (const [key, entry] of this.entries) {
+            if (this.usedBytes <= budgetBytes || this.entries.size === 1) {
+                break;
+            }
+            this.entries.delete(key);
+            this.usedBytes -= entry.bytes;
+            this.evictions++;
+        }
+    }
+
+    // Evict every entry for which keep(entry) is false
+    retain(keep) {
+        for (const [key, entry] of this.entries) {
+            if (!keep(entry)) {
+                this.entries.delete(key);
+                this.usedBytes -= entry.bytes;
+                this.evictions++;
+            }
+        }
+    }
+
+    setBudget(budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.trim(budgetBytes);
+    }
+
+    clear() {
+        this.entries.clear();
+        this.usedBytes = 0;
+    }
+
+    getStats() {
+        return {
+            hits: this.hits,
+            misses: this.misses,
+            evictions: this.evictions,
+            entries: this.entries.size,
+            usedBytes: this.usedBytes,
+            budgetBytes: this.budgetBytes
+        };
+    }
+}
@@ -0,0 +1,590 @@
+import { RenderCache } from "./cache.js";
+import { Priority } from "./scheduler.js";
+import { getBackdropScale } from "./tiles.js";
+import { TextLayerBuilder } from "./text_layer.js";
+
+// Vertical gap between pages in CSS pixels
+const pageGap = 8;
+// Pages this far before and after the screen are measured while idle
+const measureAheadPages = 10;
+
+// Continuous vertical scrolling through all pages of a document. Every page gets a
+// position from a geometry index, but only pages within the viewport plus a margin
+// hold a canvas, and only pages on screen get a text layer, once the view is idle or
+// touched. Sizes start out as the size of the first page and are corrected as the real
+// sizes of the pages around the screen become known, keeping the page under the center
+// of the screen in place. Pages render one at a time as jobs of the render scheduler,
+// those on screen ahead of those in the margin.
+export class ContinuousView {
+    constructor(container, pdfDoc, cache, metrics, scheduler, rasterize, textLayers, marginPx) {
+        this.container = container;
+        this.pdfDoc = pdfDoc;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+        this.rasterize = rasterize;
+        this.textLayers = textLayers;
+        this.marginPx = marginPx;
+
+        this.pagesDiv = document.createElement("div");
+        this.pagesDiv.className = "pages";
+        container.appendChild(this.pagesDiv);
+        container.classList.add("continuous");
+
+        // Unrotated page sizes at scale 1, and whether each one has been measured
+        this.sizes = [];
+        this.measured = [];
+        this.offsets = [];
+        this.zoomRatio = 1;
+        this.orientationDegrees = 0;
+        this.slots = new Map();
+        this.job = null;
+        this.jobPage = 0;
+        // Job keys of renders that failed, which are not tried again
+        this.failed = new Set();
+        this.currentPage = 0;
+        this.updateScheduled = false;
+        this.idleHandle = 0;
+        this.measuring = false;
+        this.textLayerTask = null;
+        this.textLayerIdleHandle = 0;
+        this.destroyed = false;
+
+        this.onScroll = () => this.scheduleUpdate();
+        globalThis.addEventListener("scroll", this.onScroll, { passive: true });
+    }
+
+    // Resolves once the first page has been measured and the index laid out
+    init(zoomRatio, orientationDegrees) {
+        return this.pdfDoc.getPage(1).then((page) => {
+            const viewport = page.getViewport({ scale: 1 });
+            for (let i = 0; i < this.pdfDoc.numPages; i++) {
+                this.sizes.push({ width: viewport.width, height: viewport.height });
+                this.measured.push(i === 0);
+            }
+            this.zoomRatio = zoomRatio;
+            this.orientationDegrees = orientationDegrees;
+            this.layout();
+            this.scheduleMeasure();
+        });
+    }
+
+    // Keep canvases for pages this far beyond the screen, releasing the others
+    setMargin(marginPx) {
+        this.marginPx = marginPx;
+        this.scheduleUpdate();
+    }
+
+    isShowing(entry) {
+        for (const slot of this.slots.values()) {
+            if (slot.entry === entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Call back with the page number and text layer of every slot showing one
+    forEachTextLayer(callback) {
+        for (const [pageNumber, slot] of this.slots) {
+            if (slot.entry !== null && slot.entry.textLayerDiv !== null) {
+                callback(pageNumber, slot.entry.textLayerDiv);
+            }
+        }
+    }
+
+    // Zoom ratio fitting the width of the first page to the screen
+    getFitWidthZoomRatio() {
+        const size = this.rotatedSize(0);
+        return document.body.clientWidth / size.width;
+    }
+
+    destroy() {
+        this.destroyed = true;
+        globalThis.removeEventListener("scroll", this.onScroll);
+        if (this.idleHandle !== 0) {
+            cancelIdleCallback(this.idleHandle);
+            this.idleHandle = 0;
+        }
+        this.cancelTask();
+        this.cancelTextLayer();
+        for (const slot of this.slots.values()) {
+            this.emptySlot(slot);
+        }
+        this.slots.clear();
+        this.pagesDiv.remove();
+        this.container.classList.remove("continuous");
+    }
+
+    rotatedSize(index) {
+        const size = this.sizes[index];
+        if (this.orientationDegrees % 180 === 0) {
+            return size;
+        }
+        return { width: size.height, height: size.width };
+    }
+
+    layout() {
+        let top = pageGap;
+        let maxWidth = 0;
+        this.offsets = [];
+        for (let i = 0; i < this.sizes.length; i++) {
+            const size = this.rotatedSize(i);
+            this.offsets.push(top);
+            top += size.height * this.zoomRatio + pageGap;
+            maxWidth = Math.max(maxWidth, size.width * this.zoomRatio);
+        }
+        this.totalWidth = Math.max(maxWidth, document.body.clientWidth);
+        this.pagesDiv.style.height = top + "px";
+        this.pagesDiv.style.width = this.totalWidth + "px";
+        this.container.style.setProperty("--scale-factor", this.zoomRatio.toString());
+
+        for (const [pageNumber, slot] of this.slots) {
+            this.positionSlot(pageNumber, slot);
+        }
+    }
+
+    positionSlot(pageNumber, slot) {
+        const size = this.rotatedSize(pageNumber - 1);
+        const width = size.width * this.zoomRatio;
+        const height = size.height * this.zoomRatio;
+        slot.div.style.top = this.offsets[pageNumber - 1] + "px";
+        slot.div.style.left = (this.totalWidth - width) / 2 + "px";
+        slot.div.style.width = width + "px";
+        slot.div.style.height = height + "px";
+        this.turnCanvas(slot);
+    }
+
+    // A slot keeps showing its canvas from before a rotation until the page is rendered
+    // again, turned to fill the new page box. Its text layer is dropped meanwhile.
+    turnCanvas(slot) {
+        if (slot.canvas === null) {
+            return;
+        }
+        const style = slot.canvas.style;
+        const rotation = (this.orientationDegrees - slot.orientationDegrees + 360) % 360;
+        if (rotation === 0) {
+            style.width = "";
+            style.height = "";
+            style.translate = "";
+            style.rotate = "";
+            return;
+        }
+        if (slot.entry !== null) {
+            this.emptySlot(slot);
+            slot.div.replaceChildren(slot.canvas);
+        }
+        const width = parseFloat(slot.div.style.width);
+        const height = parseFloat(slot.div.style.height);
+        const turned = rotation % 180 !== 0;
+        const canvasWidth = turned ? height : width;
+        const canvasHeight = turned ? width : height;
+        style.width = canvasWidth + "px";
+        style.height = canvasHeight + "px";
+        style.translate = `${(width - canvasWidth) / 2}px ${(height - canvasHeight) / 2}px`;
+        style.rotate = rotation + "deg";
+    }
+
+    // Index of the last page starting at or above y
+    pageIndexAt(y) {
+        let low = 0;
+        let high = this.offsets.length - 1;
+        while (low < high) {
+            const middle = (low + high + 1) >> 1;
+            if (this.offsets[middle] <= y) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // Position within its page of the point (x, y) of the viewport, the center by default
+    getAnchor(x = globalThis.innerWidth / 2, y = globalThis.innerHeight / 2) {
+        const top = globalThis.scrollY + y;
+        const index = this.pageIndexAt(top);
+        const size = this.rotatedSize(index);
+        const width = size.width * this.zoomRatio;
+        const left = (this.totalWidth - width) / 2;
+        return {
+            index,
+            fractionX: (globalThis.scrollX + x - left) / width,
+            fractionY: (top - this.offsets[index]) / (size.height * this.zoomRatio)
+        };
+    }
+
+    // Scroll the position of anchor to the point (x, y) of the viewport
+    restoreAnchor(anchor, x = globalThis.innerWidth / 2, y = globalThis.innerHeight / 2) {
+        const size = this.rotatedSize(anchor.index);
+        const width = size.width * this.zoomRatio;
+        const left = (this.totalWidth - width) / 2;
+        const top = this.offsets[anchor.index] + anchor.fractionY * size.height * this.zoomRatio;
+        globalThis.scrollTo(left + anchor.fractionX * width - x, top - y);
+    }
+
+    // Lay the pages out for a new zoom ratio or orientation, keeping the center of the
+    // screen in place, or after a pinch the point under focus.anchorX and focus.anchorY
+    // at focus.x and focus.y
+    setView(zoomRatio, orientationDegrees, focus = null) {
+        const changed = zoomRatio !== this.zoomRatio || orientationDegrees !== this.orientationDegrees;
+        if (changed) {
+            const anchor = this.getAnchor(focus?.anchorX, focus?.anchorY);
+            this.zoomRatio = zoomRatio;
+            this.orientationDegrees = orientationDegrees;
+            this.layout();
+            this.restoreAnchor(anchor, focus?.x, focus?.y);
+        }
+        this.scheduleUpdate();
+    }
+
+    scrollToPage(pageNumber) {
+        this.currentPage = pageNumber;
+        globalThis.scrollTo(globalThis.scrollX, this.offsets[pageNumber - 1] - pageGap);
+        this.scheduleUpdate();
+    }
+
+    scheduleUpdate() {
+        if (this.updateScheduled || this.destroyed) {
+            return;
+        }
+        this.updateScheduled = true;
+        requestAnimationFrame(() => {
+            this.updateScheduled = false;
+            if (!this.destroyed) {
+                this.update();
+            }
+        });
+    }
+
+    update() {
+        const top = globalThis.scrollY - this.marginPx;
+        const bottom = globalThis.scrollY + globalThis.innerHeight + this.marginPx;
+        const first = this.pageIndexAt(top) + 1;
+        const last = this.pageIndexAt(bottom) + 1;
+
+        const center = this.getAnchor().index + 1;
+        if (center !== this.currentPage) {
+            this.currentPage = center;
+            channel.setPage(center);
+        }
+
+        for (const [pageNumber, slot] of this.slots) {
+            if (pageNumber < first || pageNumber > last) {
+                this.emptySlot(slot);
+                slot.div.remove();
+                this.slots.delete(pageNumber);
+            }
+        }
+        // The job may have been dropped along with others by the viewer
+        if (this.job !== null && this.scheduler.find(this.job.key) !== this.job) {
+            this.job = null;
+            this.jobPage = 0;
+        }
+        if (this.jobPage !== 0 && !this.slots.has(this.jobPage)) {
+            this.cancelTask();
+        }
+        this.scheduleMeasure();
+
+        const wanted = [];
+        for (let pageNumber = first; pageNumber <= last; pageNumber++) {
+            let slot = this.slots.get(pageNumber);
+            if (slot === undefined) {
+                slot = this.createSlot(pageNumber);
+            }
+            if ((slot.zoomRatio !== this.zoomRatio || slot.orientationDegrees !== this.orientationDegrees) &&
+                    !this.failed.has(this.jobKey(pageNumber))) {
+                wanted.push(pageNumber);
+            }
+        }
+        if (this.job !== null) {
+            return;
+        }
+        if (wanted.length === 0) {
+            this.scheduleTextLayers();
+            return;
+        }
+        wanted.sort((a, b) => Math.abs(a - center) - Math.abs(b - center));
+        this.renderSlot(wanted[0]);
+    }
+
+    createSlot(pageNumber) {
+        const div = document.createElement("div");
+        div.className = "page";
+        const slot = { div, canvas: null, entry: null, zoomRatio: 0, orientationDegrees: -1 };
+        this.slots.set(pageNumber, slot);
+        this.positionSlot(pageNumber, slot);
+        this.pagesDiv.appendChild(div);
+        return slot;
+    }
+
+    jobKey(pageNumber) {
+        return "continuous:" + RenderCache.key(pageNumber, this.zoomRatio, this.orientationDegrees);
+    }
+
+    cancelTask() {
+        if (this.job !== null) {
+            const job = this.job;
+            this.job = null;
+            this.jobPage = 0;
+            this.scheduler.cancel((queued) => queued === job);
+        }
+    }
+
+    fill(slot, entry) {
+        if (slot.entry !== entry) {
+            this.emptySlot(slot);
+        }
+        if (entry.textLayerDiv !== null) {
+            slot.div.replaceChildren(entry.canvas, entry.textLayerDiv);
+        } else {
+            slot.div.replaceChildren(entry.canvas);
+        }
+        slot.canvas = entry.canvas;
+        slot.entry = entry;
+        slot.zoomRatio = entry.zoomRatio;
+        slot.orientationDegrees = entry.orientationDegrees;
+        this.turnCanvas(slot);
+    }
+
+    // Drop the text layer of the entry a slot shows, which stays cached without it
+    emptySlot(slot) {
+        if (slot.entry === null) {
+            return;
+        }
+        if (this.textLayerTask !== null && this.textLayerTask.entry === slot.entry) {
+            this.cancelTextLayer();
+        }
+        TextLayerBuilder.release(slot.entry);
+        slot.entry = null;
+    }
+
+    cancelTextLayer() {
+        if (this.textLayerIdleHandle !== 0) {
+            cancelIdleCallback(this.textLayerIdleHandle);
+            this.textLayerIdleHandle = 0;
+        }
+        if (this.textLayerTask !== null) {
+            this.textLayerTask.cancel();
+            this.textLayerTask = null;
+        }
+    }
+
+    scheduleTextLayers() {
+        if (this.textLayerTask !== null || this.textLayerIdleHandle !== 0 || this.destroyed) {
+            return;
+        }
+        this.textLayerIdleHandle = requestIdleCallback(() => {
+            this.textLayerIdleHandle = 0;
+            this.buildTextLayers();
+        });
+    }
+
+    // Build the text layer of the page on screen closest to its center, then schedule
+    // the next one
+    buildTextLayers() {
+        if (this.textLayerIdleHandle !== 0) {
+            cancelIdleCallback(this.textLayerIdleHandle);
+            this.textLayerIdleHandle = 0;
+        }
+        if (this.textLayerTask !== null || this.destroyed || this.offsets.length === 0) {
+            return;
+        }
+        const first = this.pageIndexAt(globalThis.scrollY) + 1;
+        const last = this.pageIndexAt(globalThis.scrollY + globalThis.innerHeight) + 1;
+        const center = this.getAnchor().index + 1;
+        let target = null;
+        for (let pageNumber = first; pageNumber <= last; pageNumber++) {
+            const slot = this.slots.get(pageNumber);
+            if (slot !== undefined && slot.entry !== null && slot.entry.textLayerDiv === null &&
+                    (target === null || Math.abs(pageNumber - center) < Math.abs(target - center))) {
+                target = pageNumber;
+            }
+        }
+        if (target === null) {
+            return;
+        }
+
+        const entry = this.slots.get(target).entry;
+        const viewport = entry.viewport;
+        const newTextLayerDiv = document.createElement("div");
+        newTextLayerDiv.className = "textLayer";
+        const task = this.textLayers.build(entry, newTextLayerDiv);
+        this.textLayerTask = { entry, cancel: () => task.cancel() };
+        task.promise.then(() => {
+            this.textLayerTask = null;
+            const slot = this.slots.get(target);
+            if (this.destroyed || slot === undefined || slot.entry !== entry) {
+                TextLayerBuilder.release(entry);
+                return;
+            }
+
+            // The text layer is laid out unrotated and turned with a CSS transform
+            // around its center, so swap its sides and center it on the page when the
+            // page is on its side
+            if (entry.orientationDegrees % 180 !== 0) {
+                newTextLayerDiv.style.width = viewport.height + "px";
+                newTextLayerDiv.style.height = viewport.width + "px";
+                newTextLayerDiv.style.left = (viewport.width - viewport.height) / 2 + "px";
+                newTextLayerDiv.style.top = (viewport.height - viewport.width) / 2 + "px";
+            } else {
+                newTextLayerDiv.style.width = viewport.width + "px";
+                newTextLayerDiv.style.height = viewport.height + "px";
+            }
+            slot.div.appendChild(newTextLayerDiv);
+            this.scheduleTextLayers();
+        }, (error) => {
+            if (this.textLayerTask !== null && this.textLayerTask.entry === entry) {
+                this.textLayerTask = null;
+            }
+            if (error.name !== "RenderingCancelledException") {
+                console.log("continuous text layer error: " + error);
+            }
+        });
+    }
+
+    renderSlot(pageNumber) {
+        const zoomRatio = this.zoomRatio;
+        const orientationDegrees = this.orientationDegrees;
+        const slot = this.slots.get(pageNumber);
+
+        const cached = this.cache.get(pageNumber, zoomRatio, orientationDegrees);
+        if (cached !== null) {
+            this.fill(slot, cached);
+            this.scheduleUpdate();
+            return;
+        }
+
+        const key = this.jobKey(pageNumber);
+        const onScreen = pageNumber >= this.pageIndexAt(globalThis.scrollY) + 1 &&
+            pageNumber <= this.pageIndexAt(globalThis.scrollY + globalThis.innerHeight) + 1;
+        const job = this.scheduler.submit({
+            key: key,
+            pageNumber: pageNumber,
+            priority: onScreen ? Priority.VISIBLE : Priority.PREFETCH,
+            run: (token) => this.renderEntry(token, pageNumber, zoomRatio, orientationDegrees),
+            onDone: (entry) => {
+                if (this.job !== job) {
+                    return;
+                }
+                this.job = null;
+                this.jobPage = 0;
+                if (entry === null) {
+                    this.failed.add(key);
+                } else {
+                    const current = this.slots.get(pageNumber);
+                    if (current !== undefined) {
+                        const displayStart = performance.now();
+                        this.fill(current, entry);
+                        this.metrics.onDisplay(performance.now() - displayStart);
+                    }
+                }
+                this.scheduleUpdate();
+            }
+        });
+        this.job = job;
+        this.jobPage = pageNumber;
+    }
+
+    // Render a page into a new cache entry. Resolves with null when rendering failed, and
+    // rejects only when cancelled.
+    renderEntry(token, pageNumber, zoomRatio, orientationDegrees) {
+        const getPageStart = performance.now();
+        return this.pdfDoc.getPage(pageNumber).then((page) => {
+            token.check();
+            this.measure(pageNumber, page);
+            const renderStart = performance.now();
+
+            const viewport = page.getViewport({ scale: zoomRatio, rotation: orientationDegrees });
+            const scale = getBackdropScale(viewport, globalThis.devicePixelRatio);
+            const newCanvas = document.createElement("canvas");
+            newCanvas.width = viewport.width * scale;
+            newCanvas.height = viewport.height * scale;
+
+            return token.track(this.rasterize(page, viewport, scale, newCanvas)).promise.then(() => {
+                const entry = {
+                    pageNumber: pageNumber,
+                    zoomRatio: zoomRatio,
+                    orientationDegrees: orientationDegrees,
+                    canvas: newCanvas,
+                    tiled: false,
+                    viewport: viewport,
+                    textLayerDiv: null,
+                    pageWidth: viewport.width,
+                    pageHeight: viewport.height
+                };
+                this.cache.put(entry);
+                this.metrics.onRender(renderStart - getPageStart, performance.now() - renderStart, entry.bytes);
+                return entry;
+            });
+        }).catch((error) => {
+            if (error.name === "RenderingCancelledException") {
+                throw error;
+            }
+            console.log("continuous rendering error: " + error);
+            return null;
+        });
+    }
+
+    // Correct the geometry index with the real size of a page
+    measure(pageNumber, page) {
+        const index = pageNumber - 1;
+        if (this.destroyed || this.measured[index]) {
+            return;
+        }
+        this.measured[index] = true;
+        const viewport = page.getViewport({ scale: 1 });
+        const size = this.sizes[index];
+        if (size.width === viewport.width && size.height === viewport.height) {
+            return;
+        }
+        const anchor = this.getAnchor();
+        this.sizes[index] = { width: viewport.width, height: viewport.height };
+        this.layout();
+        this.restoreAnchor(anchor);
+    }
+
+    scheduleMeasure() {
+        if (this.idleHandle !== 0 || this.measuring || this.destroyed) {
+            return;
+        }
+        this.idleHandle = requestIdleCallback(() => {
+            this.idleHandle = 0;
+            this.measureNext();
+        });
+    }
+
+    // Measure the page closest to the center of the screen among those within
+    // measureAheadPages of it that are not measured yet, then schedule the next one.
+    // Pages further away keep their estimated size until the screen gets near them.
+    measureNext() {
+        if (this.destroyed || this.offsets.length === 0) {
+            return;
+        }
+        const first = Math.max(1, this.pageIndexAt(globalThis.scrollY) + 1 - measureAheadPages);
+        const last = Math.min(this.sizes.length,
+            this.pageIndexAt(globalThis.scrollY + globalThis.innerHeight) + 1 + measureAheadPages);
+        const center = this.getAnchor().index + 1;
+        let target = 0;
+        for (let pageNumber = first; pageNumber <= last; pageNumber++) {
+            if (!this.measured[pageNumber - 1] &&
+                    (target === 0 || Math.abs(pageNumber - center) < Math.abs(target - center))) {
+                target = pageNumber;
+            }
+        }
+        if (target === 0) {
+            return;
+        }
+        this.measuring = true;
+        this.pdfDoc.getPage(target).then((page) => {
+            this.measuring = false;
+            this.measure(target, page);
+            this.scheduleMeasure();
+        }, () => {
+            // Keep the estimate rather than asking for the page again
+            this.measuring = false;
+            this.measured[target - 1] = true;
+            this.scheduleMeasure();
+        });
+    }
+}
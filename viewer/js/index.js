@@ -1,74 +1,208 @@
 import {
     GlobalWorkerOptions,
+    PDFWorker,
     PasswordResponses,
     getDocument,
-    renderTextLayer,
 } from "pdfjs-dist";
+import { RenderCache } from "./cache.js";
+import { RenderMetrics } from "./metrics.js";
+import { PrefetchScheduler } from "./prefetch.js";
+import { Priority, RenderScheduler } from "./scheduler.js";
+import { ContinuousView } from "./continuous.js";
+import { OffscreenRenderer } from "./offscreen.js";
+import { TileLayer, getBackdropScale } from "./tiles.js";
+import { TextLayerBuilder } from "./text_layer.js";
+import { SearchIndex } from "./search.js";
 
 GlobalWorkerOptions.workerSrc = "/viewer/js/worker.js";
 
 let pdfDoc = null;
-let pageRendering = false;
-let renderPending = false;
-let renderPendingZoom = 0;
-const canvas = document.getElementById("content");
+let canvas = document.getElementById("content");
 const container = document.getElementById("container");
+// Zoom and orientation of the page currently shown
 let orientationDegrees = 0;
 let zoomRatio = 1;
 let textLayerDiv = document.getElementById("text");
-let task = null;
 
-let newPageNumber = 0;
-let newZoomRatio = 1;
-let useRender;
+// Incremented by every request to show a page. Results of jobs started for an older
+// request are dropped instead of being shown.
+let generation = 0;
 
-const cache = [];
-const maxCached = 6;
+let cache = new RenderCache(0);
+let metrics = new RenderMetrics(reportStats);
+// Device pixels per CSS pixel of the quick render shown while a page is rendered
+const previewScale = 0.5;
+let offscreenRenderer = null;
+const maxPrefetchPages = 8;
+
+// Android trim memory levels forwarded by the app
+const TrimLevel = {
+    RUNNING_MODERATE: 5,
+    RUNNING_LOW: 10,
+    RUNNING_CRITICAL: 15,
+    UI_HIDDEN: 20
+};
+// Highest level reported for the open document
+let trimLevel = 0;
+let continuousView = null;
 
 let isTextLayerVisible = false;
+const textLayers = new TextLayerBuilder(onTextLayerBuilt);
+// Entry on screen, whose text layer is built when idle or on the first touch
+let shownEntry = null;
+let shownGeneration = 0;
+let textLayerTask = null;
+let textLayerIdleHandle = 0;
+
+// Latest view state pushed by the app with each command: page, zoomRatio,
+// orientationDegrees, zoom limits and continuous scroll settings
+let viewState = null;
+
+const search = new SearchIndex(
+    (query, found, done) => channel.onFindResults(query, JSON.stringify(found), done),
+    () => scheduler.busy);
+// Page of the selected hit until it is scrolled into view, otherwise 0
+let revealPage = 0;
 
-function maybeRenderNextPage() {
-    if (renderPending) {
-        pageRendering = false;
-        renderPending = false;
-        renderPage(channel.getPage(), renderPendingZoom, false);
-        return true;
+const slideDurationMs = 250;
+// Overlay with the page that is sliding out and the running animations
+let slide = null;
+
+// Take a pushed view state unless a newer one has already been applied. While scrolling
+// continuously the view decides the page, which the app learns about asynchronously, so
+// the page in the state only counts when navigating to it.
+function applyViewState(state, navigate = false) {
+    if (viewState !== null && state.version < viewState.version) {
+        return false;
+    }
+    if (!navigate && continuousView !== null && continuousView.currentPage !== 0) {
+        state.page = continuousView.currentPage;
     }
-    return false;
+    viewState = state;
+    return true;
+}
+
+function clampZoomRatio(ratio) {
+    return Math.max(Math.min(ratio, viewState.maxZoomRatio), viewState.minZoomRatio);
+}
+
+function setZoomRatio(ratio) {
+    viewState.zoomRatio = clampZoomRatio(ratio);
+    channel.setZoomRatio(viewState.zoomRatio);
 }
 
-function handleRenderingError(error) {
-    console.log("rendering error: " + error);
+let statsHandle = 0;
 
-    pageRendering = false;
-    maybeRenderNextPage();
+// Cache statistics and render metrics, batched until idle so that flipping through
+// pages does not call into the app for every render
+function reportStats() {
+    if (statsHandle !== 0) {
+        return;
+    }
+    statsHandle = requestIdleCallback(() => {
+        statsHandle = 0;
+        const stats = cache.getStats();
+        channel.setRenderCacheStats(stats.hits, stats.misses, stats.evictions, stats.entries,
+            stats.usedBytes, stats.budgetBytes);
+        channel.setRenderMetrics(JSON.stringify(metrics.getSnapshot()));
+    });
 }
 
-function doPrerender(pageNumber, prerenderTrigger) {
-    if (useRender) {
-        if (pageNumber + 1 <= pdfDoc.numPages) {
-            renderPage(pageNumber + 1, false, true, pageNumber);
-        } else if (pageNumber - 1 > 0) {
-            renderPage(pageNumber - 1, false, true, pageNumber);
-        }
-    } else if (pageNumber === prerenderTrigger + 1) {
-        if (prerenderTrigger - 1 > 0) {
-            renderPage(prerenderTrigger - 1, false, true, prerenderTrigger);
-        }
+function getMaxPrefetchPages() {
+    if (trimLevel >= TrimLevel.RUNNING_LOW) {
+        return 0;
     }
+    const limit = trimLevel >= TrimLevel.RUNNING_MODERATE ? 2 : maxPrefetchPages;
+    // Leave room for the visible page and the one being left behind
+    const entryBytes = Math.max(1, canvas.width * canvas.height * 4);
+    return Math.max(1, Math.min(limit, Math.floor(cache.budgetBytes / entryBytes) - 2));
+}
+
+const prefetcher = new PrefetchScheduler({
+    prefetch: (pageNumber) => submitPrefetch(pageNumber),
+    isCached: (pageNumber) => cache.has(pageNumber, zoomRatio, orientationDegrees),
+    isBusy: () => scheduler.busy,
+    getMaxPages: getMaxPrefetchPages,
+    discard: (plan) => scheduler.cancel((job) =>
+        job.priority === Priority.PREFETCH && !plan.includes(job.pageNumber))
+});
+
+const scheduler = new RenderScheduler(() => prefetcher.schedule());
+const tileLayer = new TileLayer(document.getElementById("tiles"), scheduler);
+
+function renderOnCanvas(page, viewport, scale, newCanvas) {
+    const newContext = newCanvas.getContext("2d", { alpha: false });
+    newContext.scale(scale, scale);
+    return page.render({
+        canvasContext: newContext,
+        viewport: viewport
+    });
+}
+
+// Rasterize on the render worker when it has the document open, showing its bitmap
+// through a bitmaprenderer context without a copy. Pages the worker fails to render
+// are drawn on the main thread instead.
+function rasterize(page, viewport, scale, newCanvas) {
+    if (offscreenRenderer === null || !offscreenRenderer.available) {
+        return renderOnCanvas(page, viewport, scale, newCanvas);
+    }
+
+    const job = offscreenRenderer.render(page.pageNumber, viewport.scale, viewport.rotation, scale);
+    let fallback = null;
+    return {
+        promise: job.promise.then(function(bitmap) {
+            newCanvas.getContext("bitmaprenderer").transferFromImageBitmap(bitmap);
+        }, function(error) {
+            if (error.name === "RenderingCancelledException") {
+                throw error;
+            }
+            console.log("offscreen rendering error: " + error);
+            fallback = renderOnCanvas(page, viewport, scale, newCanvas);
+            return fallback.promise;
+        }),
+        cancel: function() {
+            job.cancel();
+            if (fallback !== null) {
+                fallback.cancel();
+            }
+        }
+    };
 }
 
-function display(newCanvas, zoom) {
-    canvas.height = newCanvas.height;
-    canvas.width = newCanvas.width;
-    canvas.style.height = newCanvas.style.height;
-    canvas.style.width = newCanvas.style.width;
-    canvas.getContext("2d", { alpha: false }).drawImage(newCanvas, 0, 0);
+// Swap the rendered canvas itself into the document instead of copying its pixels
+// into the visible one. Cached canvases move in and out of the document this way, so
+// the CSS size is reset in case a pinch zoom stretched the canvas while it was shown.
+// A canvas rendered in another orientation is turned by rotation degrees to fill the
+// page box, which stays centered in the container.
+function display(newCanvas, pageWidth, pageHeight, zoom, rotation = 0) {
+    finishSlide();
+    const turned = rotation % 180 !== 0;
+    newCanvas.style.height = (turned ? pageWidth : pageHeight) + "px";
+    newCanvas.style.width = (turned ? pageHeight : pageWidth) + "px";
+    newCanvas.style.rotate = rotation !== 0 ? rotation + "deg" : "";
+    if (newCanvas !== canvas) {
+        canvas.removeAttribute("id");
+        newCanvas.id = "content";
+        canvas.replaceWith(newCanvas);
+        canvas = newCanvas;
+    }
     if (!zoom) {
         scrollTo(0, 0);
     }
 }
 
+function showTiles(entry, requestGeneration) {
+    tileLayer.clear();
+    if (!entry.tiled) {
+        return;
+    }
+    pdfDoc.getPage(entry.pageNumber).then(function(page) {
+        if (generation === requestGeneration) {
+            tileLayer.show(page, entry.viewport, globalThis.devicePixelRatio);
+        }
+    });
+}
+
 function setLayerTransform(pageWidth, pageHeight, layerDiv) {
     const translate = {
         X: Math.max(0, pageWidth - document.body.clientWidth) / 2,
@@ -81,169 +215,638 @@ function getDefaultZoomRatio(page, orientationDegrees) {
     const viewport = page.getViewport({scale: 1, rotation: orientationDegrees});
     const widthZoomRatio = document.body.clientWidth / viewport.width;
     const heightZoomRatio = document.body.clientHeight / viewport.height;
-    return Math.max(Math.min(widthZoomRatio, heightZoomRatio, channel.getMaxZoomRatio()), channel.getMinZoomRatio());
+    return clampZoomRatio(Math.min(widthZoomRatio, heightZoomRatio));
 }
 
-function renderPage(pageNumber, zoom, prerender, prerenderTrigger=0) {
-    pageRendering = true;
-    useRender = !prerender;
+// Replace the text layer, with an empty one while the page has none yet so that the
+// text of the previous page cannot be selected over the new one
+function showTextLayer(newTextLayerDiv) {
+    if (newTextLayerDiv === null) {
+        newTextLayerDiv = textLayerDiv.cloneNode();
+        // Without the turn of a text layer shown while the document rotates
+        newTextLayerDiv.style.rotate = "";
+        newTextLayerDiv.style.scale = "";
+    }
+    if (newTextLayerDiv !== textLayerDiv) {
+        textLayerDiv.replaceWith(newTextLayerDiv);
+        textLayerDiv = newTextLayerDiv;
+    }
+}
 
-    newPageNumber = pageNumber;
-    newZoomRatio = channel.getZoomRatio();
-    orientationDegrees = channel.getDocumentOrientationDegrees();
-    console.log("page: " + pageNumber + ", zoom: " + newZoomRatio +
-                ", orientationDegrees: " + orientationDegrees + ", prerender: " + prerender);
-    for (let i = 0; i < cache.length; i++) {
-        const cached = cache[i];
-        if (cached.pageNumber === pageNumber && cached.zoomRatio === newZoomRatio &&
-                cached.orientationDegrees === orientationDegrees) {
-            if (useRender) {
-                cache.splice(i, 1);
-                cache.push(cached);
-
-                display(cached.canvas, zoom);
-
-                textLayerDiv.replaceWith(cached.textLayerDiv);
-                textLayerDiv = cached.textLayerDiv;
-                setLayerTransform(cached.pageWidth, cached.pageHeight, textLayerDiv);
-                container.style.setProperty("--scale-factor", newZoomRatio.toString());
-            }
+function cancelTextLayer() {
+    if (textLayerIdleHandle !== 0) {
+        cancelIdleCallback(textLayerIdleHandle);
+        textLayerIdleHandle = 0;
+    }
+    if (textLayerTask !== null) {
+        textLayerTask.cancel();
+        textLayerTask = null;
+    }
+}
+
+// Stop building the text layer of the shown entry and drop its spans
+function hideEntry() {
+    cancelTextLayer();
+    if (shownEntry !== null) {
+        TextLayerBuilder.release(shownEntry);
+        shownEntry = null;
+    }
+}
 
-            pageRendering = false;
-            doPrerender(pageNumber, prerenderTrigger);
+function buildTextLayer() {
+    if (textLayerIdleHandle !== 0) {
+        cancelIdleCallback(textLayerIdleHandle);
+        textLayerIdleHandle = 0;
+    }
+    const entry = shownEntry;
+    if (entry === null || entry.textLayerDiv !== null || textLayerTask !== null) {
+        return;
+    }
+    const requestGeneration = shownGeneration;
+    const task = textLayers.build(entry, textLayerDiv.cloneNode());
+    textLayerTask = task;
+    task.promise.then(function(newTextLayerDiv) {
+        if (textLayerTask === task) {
+            textLayerTask = null;
+        }
+        if (shownEntry !== entry || generation !== requestGeneration) {
+            TextLayerBuilder.release(entry);
             return;
         }
+        // We use CSS transform to rotate a text layer div of zero
+        // degrees rotation. So, when the rotation is 90 or 270
+        // degrees, set width and height of the text layer div to the
+        // height and width of the canvas, respectively, to prevent
+        // text layer misalignment.
+        if (entry.orientationDegrees % 180 === 0) {
+            newTextLayerDiv.style.height = entry.pageHeight + "px";
+            newTextLayerDiv.style.width = entry.pageWidth + "px";
+        } else {
+            newTextLayerDiv.style.height = entry.pageWidth + "px";
+            newTextLayerDiv.style.width = entry.pageHeight + "px";
+        }
+        setLayerTransform(entry.pageWidth, entry.pageHeight, newTextLayerDiv);
+        showTextLayer(newTextLayerDiv);
+    }, function(error) {
+        if (textLayerTask === task) {
+            textLayerTask = null;
+        }
+        if (error.name !== "RenderingCancelledException") {
+            console.log("text layer error: " + error);
+        }
+    });
+}
+
+// Show a rendered page. Its text layer is built once the viewer is idle, or right
+// away when the page is touched, while the previous page gives up its spans.
+function showEntry(entry, zoom, requestGeneration) {
+    if (entry.canvas !== canvas) {
+        const displayStart = performance.now();
+        display(entry.canvas, entry.pageWidth, entry.pageHeight, zoom);
+        metrics.onDisplay(performance.now() - displayStart);
+        showTiles(entry, requestGeneration);
     }
+    zoomRatio = entry.zoomRatio;
+    orientationDegrees = entry.orientationDegrees;
+    if (entry !== shownEntry) {
+        hideEntry();
+        shownEntry = entry;
+    }
+    shownGeneration = requestGeneration;
+    showTextLayer(entry.textLayerDiv);
+    if (entry.textLayerDiv !== null) {
+        setLayerTransform(entry.pageWidth, entry.pageHeight, textLayerDiv);
+    } else if (entry.pageNumber === revealPage) {
+        buildTextLayer();
+    } else if (textLayerTask === null && textLayerIdleHandle === 0) {
+        textLayerIdleHandle = requestIdleCallback(() => {
+            textLayerIdleHandle = 0;
+            buildTextLayer();
+        });
+    }
+    container.style.setProperty("--scale-factor", entry.zoomRatio.toString());
+}
+
+// Render a page into a new cache entry, without a text layer
+function renderEntry(pageNumber, zoomRatio, orientationDegrees, token) {
+    const getPageStart = performance.now();
+    return pdfDoc.getPage(pageNumber).then(function(page) {
+        token.check();
+        const renderStart = performance.now();
+        const viewport = page.getViewport({scale: zoomRatio, rotation: orientationDegrees});
+
+        // Past the canvas size budget the page canvas becomes a low-resolution
+        // backdrop and the visible area is drawn at full resolution by tiles
+        const newCanvas = document.createElement("canvas");
+        const ratio = globalThis.devicePixelRatio;
+        const scale = getBackdropScale(viewport, ratio);
+        newCanvas.height = viewport.height * scale;
+        newCanvas.width = viewport.width * scale;
+        newCanvas.style.height = viewport.height + "px";
+        newCanvas.style.width = viewport.width + "px";
+
+        const entry = {
+            pageNumber: pageNumber,
+            zoomRatio: zoomRatio,
+            orientationDegrees: orientationDegrees,
+            canvas: newCanvas,
+            tiled: scale < ratio,
+            viewport: viewport,
+            textLayerDiv: null,
+            pageWidth: viewport.width,
+            pageHeight: viewport.height
+        };
 
+        return token.track(rasterize(page, viewport, scale, newCanvas)).promise.then(function() {
+            cache.put(entry);
+            metrics.onRender(renderStart - getPageStart, performance.now() - renderStart, entry.bytes);
+            return entry;
+        });
+    });
+}
+
+// Quick render at a reduced scale, resolving with null when it would not be smaller
+// than the full render or fails, so that the full render always follows
+function renderPreview(pageNumber, zoomRatio, orientationDegrees, token) {
+    return pdfDoc.getPage(pageNumber).then(function(page) {
+        token.check();
+        const viewport = page.getViewport({scale: zoomRatio, rotation: orientationDegrees});
+        if (getBackdropScale(viewport, globalThis.devicePixelRatio) <= previewScale) {
+            return null;
+        }
+        const previewCanvas = document.createElement("canvas");
+        previewCanvas.height = viewport.height * previewScale;
+        previewCanvas.width = viewport.width * previewScale;
+        return token.track(rasterize(page, viewport, previewScale, previewCanvas)).promise.then(function() {
+            return { canvas: previewCanvas, pageWidth: viewport.width, pageHeight: viewport.height };
+        });
+    }).catch(function(error) {
+        if (error.name === "RenderingCancelledException") {
+            throw error;
+        }
+        console.log("preview rendering error: " + error);
+        return null;
+    });
+}
+
+function showPreview(preview, zoom) {
+    tileLayer.clear();
+    hideEntry();
+    showTextLayer(preview.textLayerDiv ?? null);
+    display(preview.canvas, preview.pageWidth, preview.pageHeight, zoom, preview.rotation ?? 0);
+}
+
+// Stand-in for a page that failed to render, so that neither its preview nor the page
+// before it stays on screen as if it were still loading
+function showBlankPage(pageNumber, newZoomRatio, newOrientationDegrees, zoom, requestGeneration) {
     pdfDoc.getPage(pageNumber).then(function(page) {
-        if (maybeRenderNextPage()) {
+        if (generation !== requestGeneration) {
             return;
         }
+        const viewport = page.getViewport({scale: newZoomRatio, rotation: newOrientationDegrees});
+        const blank = document.createElement("canvas");
+        blank.width = 1;
+        blank.height = 1;
+        const blankContext = blank.getContext("2d");
+        blankContext.fillStyle = "white";
+        blankContext.fillRect(0, 0, 1, 1);
+        showPreview({ canvas: blank, pageWidth: viewport.width, pageHeight: viewport.height }, zoom);
+        zoomRatio = newZoomRatio;
+        orientationDegrees = newOrientationDegrees;
+    }).catch(function(error) {
+        console.log("blank page error: " + error);
+    });
+}
 
-        const defaultZoomRatio = getDefaultZoomRatio(page, orientationDegrees);
+function submitPrefetch(pageNumber, priority = Priority.PREFETCH) {
+    const prefetchZoomRatio = zoomRatio;
+    const prefetchOrientationDegrees = orientationDegrees;
+    scheduler.submit({
+        key: RenderCache.key(pageNumber, prefetchZoomRatio, prefetchOrientationDegrees),
+        pageNumber: pageNumber,
+        priority: priority,
+        generation: generation,
+        run: (token) => renderEntry(pageNumber, prefetchZoomRatio, prefetchOrientationDegrees, token),
+        onDone: (entry, error) => {
+            if (error !== null) {
+                prefetcher.onFailed(pageNumber);
+            }
+        }
+    });
+}
+
+// Start rendering the page a swipe is heading to while the finger is still down. It
+// goes ahead of other prefetches, and is dropped by the next page change unless that
+// shows it.
+function preparePage(pageNumber) {
+    if (pdfDoc === null || continuousView !== null || pageNumber < 1 || pageNumber > pdfDoc.numPages ||
+            cache.has(pageNumber, zoomRatio, orientationDegrees)) {
+        return;
+    }
+    submitPrefetch(pageNumber, Priority.PREVIEW);
+}
+
+// Remove the page that slid out and stop the animations, leaving the new page in place
+function finishSlide() {
+    if (slide === null) {
+        return;
+    }
+    const finished = slide;
+    slide = null;
+    for (const animation of finished.animations) {
+        animation.cancel();
+    }
+    finished.overlay.remove();
+}
+
+// Page after a swipe, towards the next page for a direction of 1. When the page is
+// already rendered it is shown right away and slides in while the previous one slides
+// out on an overlay. Both only move with transforms, so the animation never waits on
+// rendering. Otherwise the page is shown as for any other page change.
+function slideToPage(direction, state) {
+    if (!applyViewState(state) || pdfDoc === null) {
+        return;
+    }
+    if (continuousView !== null) {
+        continuousView.scrollToPage(viewState.page);
+        return;
+    }
+    finishSlide();
+    const ready = cache.has(viewState.page, viewState.zoomRatio, viewState.orientationDegrees);
+    const outgoing = canvas;
+    const rect = outgoing.getBoundingClientRect();
+    renderPage(0);
+    prefetcher.onNavigate(viewState.page);
+    if (!ready || canvas === outgoing) {
+        return;
+    }
 
-        if (cache.length === 0) {
-            zoomRatio = defaultZoomRatio;
-            newZoomRatio = defaultZoomRatio;
-            channel.setZoomRatio(defaultZoomRatio);
+    const overlay = document.createElement("div");
+    overlay.style.position = "fixed";
+    overlay.style.left = rect.left + "px";
+    overlay.style.top = rect.top + "px";
+    overlay.style.pointerEvents = "none";
+    overlay.append(outgoing);
+    document.body.append(overlay);
+
+    const distance = document.body.clientWidth * direction;
+    const options = { duration: slideDurationMs, easing: "ease-out" };
+    const animations = [
+        overlay.animate([
+            { transform: "translateX(0)" },
+            { transform: `translateX(${-distance}px)` }
+        ], options),
+        container.animate([
+            { transform: `translateX(${distance}px)` },
+            { transform: "translateX(0)" }
+        ], options)
+    ];
+    const current = { overlay, animations };
+    slide = current;
+    animations[1].finished.then(() => {
+        if (slide === current) {
+            finishSlide();
         }
+    }, () => {});
+}
+
+// Run resize, which changes the size of the shown canvas, keeping the point of the
+// page under (focus.anchorX, focus.anchorY) of the viewport at (focus.x, focus.y)
+function resizeAroundFocus(focus, resize) {
+    if (focus === null) {
+        resize();
+        return;
+    }
+    const before = canvas.getBoundingClientRect();
+    const fractionX = (focus.anchorX - before.left) / before.width;
+    const fractionY = (focus.anchorY - before.top) / before.height;
+    resize();
+    const after = canvas.getBoundingClientRect();
+    scrollBy(after.left + fractionX * after.width - focus.x, after.top + fractionY * after.height - focus.y);
+}
+
+// Show the current page of the channel. zoom is 0 for page and orientation changes,
+// which reset the scroll position, and 1 for a new zoom level. After a pinch, focus
+// holds where the gesture began and ended, in CSS pixels of the viewport.
+function renderPage(zoom, focus = null) {
+    const pageNumber = viewState.page;
+    const newZoomRatio = viewState.zoomRatio;
+    const newOrientationDegrees = viewState.orientationDegrees;
+    const requestGeneration = ++generation;
+    console.log("page: " + pageNumber + ", zoom: " + newZoomRatio +
+                ", orientationDegrees: " + newOrientationDegrees);
 
-        const viewport = page.getViewport({scale: newZoomRatio, rotation: orientationDegrees});
+    const key = RenderCache.key(pageNumber, newZoomRatio, newOrientationDegrees);
+    const dropStale = () => scheduler.cancel((job) =>
+        job.priority <= Priority.PREVIEW && job.generation < requestGeneration);
 
-        if (useRender) {
-            if (newZoomRatio !== zoomRatio) {
+    const cached = cache.get(pageNumber, newZoomRatio, newOrientationDegrees);
+    metrics.onCacheLookup(cached !== null);
+    reportStats();
+    if (cached !== null) {
+        dropStale();
+        resizeAroundFocus(focus, () => showEntry(cached, zoom, requestGeneration));
+        return;
+    }
+
+    // The shown canvas is stretched to the new size until the page is rendered at it
+    if (focus !== null) {
+        pdfDoc.getPage(pageNumber).then(function(page) {
+            if (generation !== requestGeneration) {
+                return;
+            }
+            const viewport = page.getViewport({scale: newZoomRatio, rotation: newOrientationDegrees});
+            resizeAroundFocus(focus, () => {
                 canvas.style.height = viewport.height + "px";
                 canvas.style.width = viewport.width + "px";
+            });
+            tileLayer.clear();
+        });
+    }
+
+    const onRendered = (entry, error) => {
+        if (generation !== requestGeneration) {
+            return;
+        }
+        if (error !== null) {
+            prefetcher.onFailed(pageNumber);
+            showBlankPage(pageNumber, newZoomRatio, newOrientationDegrees, zoom, requestGeneration);
+            return;
+        }
+        showEntry(entry, zoom, requestGeneration);
+    };
+    const submitVisible = () => {
+        scheduler.submit({
+            key: key,
+            pageNumber: pageNumber,
+            priority: Priority.VISIBLE,
+            generation: requestGeneration,
+            run: (token) => renderEntry(pageNumber, newZoomRatio, newOrientationDegrees, token),
+            onDone: onRendered
+        });
+        dropStale();
+    };
+
+    // A quick low-resolution pass is shown first on page changes so that the page
+    // appears before the full-resolution render completes. Zoom changes already show
+    // the previous render stretched to the new size, and a page that is being
+    // prefetched is not worth delaying.
+    if (zoom || scheduler.find(key) !== undefined) {
+        submitVisible();
+        return;
+    }
+
+    // A render in another orientation is turned into place, so rotating the document
+    // shows the page right away
+    const closest = cache.findClosest(pageNumber, newZoomRatio, newOrientationDegrees);
+    if (closest !== null) {
+        const stretch = newZoomRatio / closest.zoomRatio;
+        const rotation = (newOrientationDegrees - closest.orientationDegrees + 360) % 360;
+        const turned = rotation % 180 !== 0;
+        // The text layer of the page being rotated is turned along with its canvas
+        const closestTextLayerDiv = closest === shownEntry ? closest.textLayerDiv : null;
+        if (closestTextLayerDiv !== null) {
+            closestTextLayerDiv.style.rotate = rotation + "deg";
+            closestTextLayerDiv.style.scale = stretch.toString();
+        }
+        showPreview({
+            canvas: closest.canvas,
+            pageWidth: (turned ? closest.pageHeight : closest.pageWidth) * stretch,
+            pageHeight: (turned ? closest.pageWidth : closest.pageHeight) * stretch,
+            rotation: rotation,
+            textLayerDiv: closestTextLayerDiv
+        }, zoom);
+        submitVisible();
+        return;
+    }
+
+    scheduler.submit({
+        key: "preview:" + key,
+        pageNumber: pageNumber,
+        priority: Priority.PREVIEW,
+        generation: requestGeneration,
+        run: (token) => renderPreview(pageNumber, newZoomRatio, newOrientationDegrees, token),
+        onDone: (preview) => {
+            if (generation !== requestGeneration) {
+                return;
             }
-            zoomRatio = newZoomRatio;
+            if (preview !== null) {
+                showPreview(preview, zoom);
+            }
+            submitVisible();
         }
+    });
+    dropStale();
+}
+
+// Fit the current page to the screen and show it
+function renderFirstPage() {
+    const pageNumber = viewState.page;
+    pdfDoc.getPage(pageNumber).then(function(page) {
+        setZoomRatio(getDefaultZoomRatio(page, viewState.orientationDegrees));
+        renderPage(0);
+        prefetcher.onNavigate(pageNumber);
+    });
+}
 
-        if (zoom === 2) {
-            pageRendering = false;
+function onRenderPage(zoom, state, focus = null) {
+    const previousState = viewState;
+    if (!applyViewState(state) || pdfDoc === null) {
+        return;
+    }
+    const rotated = previousState !== null && previousState.orientationDegrees !== state.orientationDegrees;
+    if (continuousView !== null) {
+        // Turning the document fits the pages to the width of the screen again
+        if (rotated) {
+            continuousView.setView(viewState.zoomRatio, viewState.orientationDegrees);
+            setZoomRatio(continuousView.getFitWidthZoomRatio());
+        }
+        continuousView.setView(viewState.zoomRatio, viewState.orientationDegrees, focus);
+        return;
+    }
+    // Turning the document fits the page to the screen again. The page shown until then
+    // is turned right away and the new render replaces it when done.
+    if (rotated) {
+        pdfDoc.getPage(state.page).then(function(page) {
+            if (viewState !== state) {
+                return;
+            }
+            setZoomRatio(getDefaultZoomRatio(page, viewState.orientationDegrees));
+            renderPage(zoom, focus);
+            prefetcher.onNavigate(viewState.page);
+        });
+        return;
+    }
+    renderPage(zoom, focus);
+    prefetcher.onNavigate(viewState.page);
+}
+
+// Show the page of the view state, which the user picked
+function goToPage(state) {
+    if (!applyViewState(state, true) || pdfDoc === null) {
+        return;
+    }
+    if (continuousView !== null) {
+        continuousView.scrollToPage(viewState.page);
+        return;
+    }
+    renderPage(0);
+    prefetcher.onNavigate(viewState.page);
+}
+
+function getRenderQueueStats() {
+    return scheduler.getStats();
+}
+
+function enterContinuousMode() {
+    finishSlide();
+    prefetcher.reset(pdfDoc.numPages);
+    generation++;
+    scheduler.cancelAll();
+    tileLayer.clear();
+    hideEntry();
+    showTextLayer(null);
+    cache.clear();
+
+    const marginPx = trimLevel >= TrimLevel.RUNNING_LOW ? 0 : viewState.continuousScrollMargin;
+    const view = new ContinuousView(container, pdfDoc, cache, metrics, scheduler, rasterize,
+        textLayers, marginPx);
+    continuousView = view;
+    const pageNumber = viewState.page;
+    view.init(viewState.zoomRatio, viewState.orientationDegrees).then(function () {
+        if (continuousView !== view) {
             return;
         }
+        setZoomRatio(view.getFitWidthZoomRatio());
+        view.setView(viewState.zoomRatio, viewState.orientationDegrees);
+        view.scrollToPage(pageNumber);
+    });
+}
 
-        const newCanvas = document.createElement("canvas");
-        const ratio = globalThis.devicePixelRatio;
-        newCanvas.height = viewport.height * ratio;
-        newCanvas.width = viewport.width * ratio;
-        newCanvas.style.height = viewport.height + "px";
-        newCanvas.style.width = viewport.width + "px";
-        const newContext = newCanvas.getContext("2d", { alpha: false });
-        newContext.scale(ratio, ratio);
+function exitContinuousMode() {
+    continuousView.destroy();
+    continuousView = null;
+    cache.clear();
+    renderFirstPage();
+}
 
-        task = page.render({
-            canvasContext: newContext,
-            viewport: viewport
+function setContinuousScroll(state) {
+    if (!applyViewState(state) || pdfDoc === null || state.continuousScroll === (continuousView !== null)) {
+        return;
+    }
+    if (state.continuousScroll) {
+        enterContinuousMode();
+    } else {
+        exitContinuousMode();
+    }
+}
+
+function setRenderCacheBudget(budgetBytes) {
+    cache.setBudget(budgetBytes);
+    reportStats();
+}
+
+// Shed memory as the app reports pressure with Android trim levels: prefetched and
+// other off-screen pages first, then cached text content and the tiles and canvases
+// kept around the screen, then the resources pdf.js keeps for pages. Prefetching stays
+// limited until another document is opened.
+function trimMemory(level) {
+    trimLevel = Math.max(trimLevel, level);
+    if (pdfDoc === null) {
+        return;
+    }
+    if (level >= TrimLevel.RUNNING_MODERATE) {
+        scheduler.cancel((job) => job.priority >= Priority.PREFETCH);
+        prefetcher.clearPlan();
+        cache.retain((entry) => continuousView !== null ? continuousView.isShowing(entry) : entry === shownEntry);
+    }
+    if (level >= TrimLevel.RUNNING_LOW) {
+        textLayers.clearTextContents();
+        tileLayer.setMarginEnabled(false);
+        if (continuousView !== null) {
+            continuousView.setMargin(0);
+        }
+    }
+    if (level >= TrimLevel.RUNNING_CRITICAL) {
+        pdfDoc.cleanup().catch(function (error) {
+            console.log("cleanup error: " + error);
         });
+        if (offscreenRenderer !== null) {
+            offscreenRenderer.cleanup();
+        }
+    }
+    // Once the app is in the background the text layer of the shown page goes too,
+    // unless text is selected. Touching the page builds it again.
+    if (level >= TrimLevel.UI_HIDDEN && continuousView === null && shownEntry !== null && !isTextSelected()) {
+        cancelTextLayer();
+        TextLayerBuilder.release(shownEntry);
+        showTextLayer(null);
+    }
+    reportStats();
+}
 
-        task.promise.then(function() {
-            task = null;
+function onTextLayerBuilt(ms, entry, div) {
+    metrics.onTextLayer(ms);
+    highlightTextLayer(entry.pageNumber, div);
+}
 
-            let rendered = false;
-            function render() {
-                if (!useRender || rendered) {
-                    return;
-                }
-                display(newCanvas, zoom);
-                rendered = true;
+// Mark the hits of the search in a text layer. The selected hit is scrolled into view
+// once, after the text layer is on screen.
+function highlightTextLayer(pageNumber, div) {
+    const selected = search.highlight(pageNumber, div);
+    if (selected !== null && pageNumber === revealPage) {
+        revealPage = 0;
+        requestAnimationFrame(() => {
+            if (selected.isConnected) {
+                selected.scrollIntoView({ block: "center", inline: "center" });
             }
-            render();
+        });
+    }
+}
 
-            const newTextLayerDiv = textLayerDiv.cloneNode();
-            task = renderTextLayer({
-                textContentSource: page.streamTextContent(),
-                container: newTextLayerDiv,
-                viewport: viewport
-            });
-            task.promise.then(function() {
-                task = null;
-
-                render();
-
-                // We use CSS transform to rotate a text layer div of zero
-                // degrees rotation. So, when the rotation is 90 or 270
-                // degrees, set width and height of the text layer div to the
-                // height and width of the canvas, respectively, to prevent
-                // text layer misalignment.
-                if (orientationDegrees % 180 === 0) {
-                    newTextLayerDiv.style.height = newCanvas.style.height;
-                    newTextLayerDiv.style.width = newCanvas.style.width;
-                } else {
-                    newTextLayerDiv.style.height = newCanvas.style.width;
-                    newTextLayerDiv.style.width = newCanvas.style.height;
-                }
-                setLayerTransform(viewport.width, viewport.height, newTextLayerDiv);
-                if (useRender) {
-                    textLayerDiv.replaceWith(newTextLayerDiv);
-                    textLayerDiv = newTextLayerDiv;
-                    container.style.setProperty("--scale-factor", newZoomRatio.toString());
-                }
-
-                if (cache.length === maxCached) {
-                    cache.shift();
-                }
-                cache.push({
-                    pageNumber: pageNumber,
-                    zoomRatio: newZoomRatio,
-                    orientationDegrees: orientationDegrees,
-                    canvas: newCanvas,
-                    textLayerDiv: newTextLayerDiv,
-                    pageWidth: viewport.width,
-                    pageHeight: viewport.height
-                });
-
-                pageRendering = false;
-                doPrerender(pageNumber, prerenderTrigger);
-            }).catch(handleRenderingError);
-        }).catch(handleRenderingError);
-    });
+function highlightTextLayers() {
+    if (continuousView !== null) {
+        continuousView.forEachTextLayer(highlightTextLayer);
+    } else if (shownEntry !== null && shownEntry.textLayerDiv !== null) {
+        highlightTextLayer(shownEntry.pageNumber, shownEntry.textLayerDiv);
+    }
 }
 
-globalThis.onRenderPage = function (zoom) {
-    if (pageRendering) {
-        if (newPageNumber === channel.getPage() && newZoomRatio === channel.getZoomRatio() &&
-                orientationDegrees === channel.getDocumentOrientationDegrees()) {
-            useRender = true;
-            return;
-        }
+// Search the document for query, or stop searching for an empty one. Hits are sent to
+// the app as the text of the pages is indexed, starting from startPage.
+function find(query, startPage) {
+    revealPage = 0;
+    search.find(query, startPage);
+    highlightTextLayers();
+}
 
-        renderPending = true;
-        renderPendingZoom = zoom;
-        if (task !== null) {
-            task.cancel();
-            task = null;
+// Select hit index of a page the app navigated to, building its text layer right away
+// to show the hit, and get the page of the following hit ready
+function showFindMatch(pageNumber, index, nextPage) {
+    if (pdfDoc === null || !search.active) {
+        return;
+    }
+    search.select(pageNumber, index);
+    revealPage = pageNumber;
+    highlightTextLayers();
+    if (revealPage !== 0) {
+        if (continuousView !== null) {
+            continuousView.buildTextLayers();
+        } else {
+            buildTextLayer();
         }
-    } else {
-        renderPage(channel.getPage(), zoom, false);
     }
-};
+    if (nextPage !== pageNumber && nextPage >= 1 && nextPage <= pdfDoc.numPages) {
+        preparePage(nextPage);
+        textLayers.getTextContent(nextPage);
+    }
+}
 
-globalThis.isTextSelected = function () {
+function isTextSelected() {
     return globalThis.getSelection().toString() !== "";
-};
+}
 
-globalThis.toggleTextLayerVisibility = function () {
+function toggleTextLayerVisibility() {
     let textLayerForeground = "red";
     let textLayerOpacity = 1;
     if (isTextLayerVisible) {
@@ -253,11 +856,63 @@ globalThis.toggleTextLayerVisibility = function () {
     document.documentElement.style.setProperty("--text-layer-foreground", textLayerForeground);
     document.documentElement.style.setProperty("--text-layer-opacity", textLayerOpacity.toString());
     isTextLayerVisible = !isTextLayerVisible;
-};
+}
+
+const documentUrl = "https://localhost/placeholder.pdf";
+let loadingTask = null;
+// Shared by every document opened in this page, so that opening another one does not
+// start and initialize a new worker
+const pdfWorker = new PDFWorker();
+
+// Drop everything belonging to the open document, leaving the page ready to load
+// another one in place
+function closeDocument() {
+    generation++;
+    scheduler.cancelAll();
+    finishSlide();
+    prefetcher.reset(0);
+    if (continuousView !== null) {
+        continuousView.destroy();
+        continuousView = null;
+    }
+    tileLayer.clear();
+    hideEntry();
+    textLayers.setDocument(null);
+    search.setDocument(null);
+    revealPage = 0;
+    cache.clear();
+    textLayerDiv.replaceChildren();
+    canvas.width = 0;
+    canvas.height = 0;
+    pdfDoc = null;
+}
 
-globalThis.loadDocument = function () {
+function loadDocument(state) {
+    applyViewState(state);
     const pdfPassword = channel.getPassword();
-    const loadingTask = getDocument({ url: "https://localhost/placeholder.pdf", password: pdfPassword });
+    if (pdfDoc !== null) {
+        closeDocument();
+    }
+    trimLevel = 0;
+    tileLayer.setMarginEnabled(true);
+    // Destroying the task destroys its document. A task waiting for a password would
+    // otherwise stay alive, and could ask for it again after the app already prompted.
+    if (loadingTask !== null) {
+        loadingTask.destroy();
+    }
+    // The interceptor answers range requests, so let pdf.js fetch only the chunks needed
+    // for the pages being shown rather than streaming the whole file up front.
+    const task = getDocument({
+        url: documentUrl,
+        password: pdfPassword,
+        disableAutoFetch: true,
+        disableStream: true,
+        rangeChunkSize: 65536,
+        worker: pdfWorker
+    });
+    loadingTask = task;
+    metrics = new RenderMetrics(reportStats);
+    loadingTask.onProgress = (progress) => metrics.onLoadProgress(progress.loaded);
     loadingTask.onPassword = (_, error) => {
         if (error === PasswordResponses.NEED_PASSWORD) {
             channel.showPasswordPrompt();
@@ -267,20 +922,104 @@ globalThis.loadDocument = function () {
     };
 
     loadingTask.promise.then(function (newDoc) {
+        if (task !== loadingTask) {
+            return;
+        }
         channel.onLoaded();
         pdfDoc = newDoc;
+        textLayers.setDocument(pdfDoc);
+        search.setDocument(pdfDoc);
+        cache = new RenderCache(channel.getRenderCacheBudget());
+        // The render worker parses its own copy of the document, see render_worker.js
+        if (OffscreenRenderer.isSupported()) {
+            if (offscreenRenderer === null) {
+                offscreenRenderer = new OffscreenRenderer();
+            }
+            offscreenRenderer.open(documentUrl, pdfPassword);
+        }
         channel.setNumPages(pdfDoc.numPages);
         pdfDoc.getMetadata().then(function (data) {
             channel.setDocumentProperties(JSON.stringify(data.info));
         }).catch(function (error) {
             console.log("getMetadata error: " + error);
         });
-        renderPage(channel.getPage(), false, false);
+        prefetcher.reset(pdfDoc.numPages);
+        if (viewState.continuousScroll) {
+            enterContinuousMode();
+        } else {
+            renderFirstPage();
+        }
     }, function (reason) {
-        console.error(reason.name + ": " + reason.message);
+        if (task === loadingTask) {
+            console.error(reason.name + ": " + reason.message);
+        }
     });
+}
+
+const commands = {
+    loadDocument,
+    renderPage: onRenderPage,
+    goToPage,
+    slideToPage,
+    preparePage,
+    setContinuousScroll,
+    setRenderCacheBudget,
+    trimMemory,
+    toggleTextLayerVisibility,
+    isTextSelected,
+    find,
+    showFindMatch,
+    getRenderQueueStats
 };
 
+// Commands from the app as {command, arguments, id}. Results of commands with an id are
+// posted back on the port prefixed by the id, or returned when the app evaluated the
+// call as a script because no port was connected.
+function onViewerCommand(message) {
+    const handler = commands[message.command];
+    if (handler === undefined) {
+        console.log("unknown command: " + message.command);
+        return null;
+    }
+    const result = handler(...(message.arguments ?? []));
+    return result === undefined ? null : result;
+}
+
+globalThis.onViewerCommand = onViewerCommand;
+
+let commandPort = null;
+
+globalThis.addEventListener("message", (event) => {
+    // Only the app can post to the viewer, and it hands over a single port per page load
+    if (commandPort !== null || event.data !== "connect" || event.ports.length !== 1) {
+        return;
+    }
+    commandPort = event.ports[0];
+    commandPort.onmessage = (commandEvent) => {
+        const message = JSON.parse(commandEvent.data);
+        const result = onViewerCommand(message);
+        if (message.id !== undefined) {
+            commandPort.postMessage(message.id + ":" + JSON.stringify(result));
+        }
+    };
+});
+
+// Text is selected with a long press, so touching the page builds its text layer
+// without waiting for the viewer to be idle
+document.addEventListener("pointerdown", () => {
+    if (continuousView !== null) {
+        continuousView.buildTextLayers();
+    } else {
+        buildTextLayer();
+    }
+}, { passive: true });
+
 globalThis.onresize = () => {
+    if (continuousView !== null) {
+        continuousView.layout();
+        continuousView.scheduleUpdate();
+        return;
+    }
     setLayerTransform(canvas.clientWidth, canvas.clientHeight, textLayerDiv);
+    tileLayer.scheduleUpdate();
 };
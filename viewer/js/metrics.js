@@ -0,0 +1,98 @@
+// Upper bounds of the histogram buckets in milliseconds, doubling from 1 ms to about
+// 4 s, with a last bucket for everything slower
+const bucketBounds = [1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096];
+
+class Histogram {
+    constructor() {
+        this.counts = new Array(bucketBounds.length + 1).fill(0);
+        this.count = 0;
+        this.sum = 0;
+        this.max = 0;
+    }
+
+    add(ms) {
+        let bucket = bucketBounds.findIndex((bound) => ms <= bound);
+        if (bucket === -1) {
+            bucket = bucketBounds.length;
+        }
+        this.counts[bucket]++;
+        this.count++;
+        this.sum += ms;
+        this.max = Math.max(this.max, ms);
+    }
+
+    toJSON() {
+        return { count: this.count, sum: this.sum, max: this.max, counts: this.counts };
+    }
+}
+
+// Timings of page renders for the current document, aggregated into histograms so that
+// the app can read them at any point without the viewer keeping every sample.
+// onChange() is called whenever a render or display is recorded.
+export class RenderMetrics {
+    constructor(onChange) {
+        this.onChange = onChange;
+        this.loadStart = performance.now();
+        this.timeToFirstPage = -1;
+        this.loadBytes = 0;
+        this.renders = 0;
+        this.cacheHits = 0;
+        this.cacheMisses = 0;
+        this.canvasBytes = 0;
+        this.getPage = new Histogram();
+        this.render = new Histogram();
+        this.textLayer = new Histogram();
+        this.display = new Histogram();
+    }
+
+    onLoadProgress(loaded) {
+        this.loadBytes = Math.max(this.loadBytes, loaded);
+    }
+
+    onCacheLookup(hit) {
+        if (hit) {
+            this.cacheHits++;
+        } else {
+            this.cacheMisses++;
+        }
+    }
+
+    // Times of the steps of one render in milliseconds
+    onRender(getPageMs, renderMs, canvasBytes) {
+        this.renders++;
+        this.getPage.add(getPageMs);
+        this.render.add(renderMs);
+        this.canvasBytes += canvasBytes;
+        this.onChange();
+    }
+
+    // Text layers are built separately from renders, only for shown pages
+    onTextLayer(textLayerMs) {
+        this.textLayer.add(textLayerMs);
+        this.onChange();
+    }
+
+    onDisplay(displayMs) {
+        this.display.add(displayMs);
+        if (this.timeToFirstPage === -1) {
+            this.timeToFirstPage = performance.now() - this.loadStart;
+        }
+        this.onChange();
+    }
+
+    getSnapshot() {
+        return {
+            bucketBounds: bucketBounds,
+            timeToFirstPage: this.timeToFirstPage,
+            loadBytes: this.loadBytes,
+            renders: this.renders,
+            cacheHits: this.cacheHits,
+            cacheMisses: this.cacheMisses,
+            canvasBytes: this.canvasBytes,
+            getPage: this.getPage.toJSON(),
+            render: this.render.toJSON(),
+            textLayer: this.textLayer.toJSON(),
+            display: this.display.toJSON()
+        };
+    }
+}
@@ -0,0 +1,148 @@
+// Client for render_worker.js, which rasterizes pages into OffscreenCanvas on a worker
+// thread. Jobs look like pdf.js render tasks (a promise plus cancel()) so that they can
+// take the place of page.render() in the rendering code. Rendering there does not wait
+// for animation frames, so it also works in a WebView that is not attached to a window.
+
+function cancelledError() {
+    const error = new Error("Rendering cancelled");
+    error.name = "RenderingCancelledException";
+    return error;
+}
+
+export class OffscreenRenderer {
+    static isSupported() {
+        return typeof OffscreenCanvas !== "undefined" && typeof Worker !== "undefined" &&
+            typeof ImageBitmapRenderingContext !== "undefined";
+    }
+
+    constructor() {
+        this.worker = new Worker("/viewer/js/render_worker.js", { type: "module" });
+        this.ready = false;
+        this.failed = false;
+        this.nextId = 0;
+        this.jobs = new Map();
+        this.opening = null;
+        this.worker.onmessage = (event) => this.onMessage(event.data);
+        this.worker.onerror = (event) => {
+            console.log("render worker error: " + event.message);
+            this.fail();
+        };
+    }
+
+    get available() {
+        return this.ready && !this.failed;
+    }
+
+    // Returns a promise settling once the worker has opened the document or failed to.
+    // A failure belongs to the document it happened with, so the next one tries the
+    // worker again.
+    open(url, password) {
+        this.ready = false;
+        this.failed = false;
+        this.rejectAll(cancelledError);
+        if (this.opening !== null) {
+            this.opening.reject(cancelledError());
+        }
+        const opened = new Promise((resolve, reject) => {
+            this.opening = { resolve, reject };
+        });
+        // Callers that only check available do not wait on it
+        opened.catch(() => {});
+        this.worker.postMessage({ type: "open", url, password });
+        return opened;
+    }
+
+    // Let the worker free the fonts and other resources its document keeps for pages
+    cleanup() {
+        this.worker.postMessage({ type: "cleanup" });
+    }
+
+    fail() {
+        this.failed = true;
+        if (this.opening !== null) {
+            this.opening.reject(new Error("render worker unavailable"));
+            this.opening = null;
+        }
+        this.rejectAll(() => new Error("render worker unavailable"));
+    }
+
+    rejectAll(makeError) {
+        for (const job of this.jobs.values()) {
+            job.reject(makeError());
+        }
+        this.jobs.clear();
+    }
+
+    onMessage(message) {
+        if (message.type === "opened") {
+            this.ready = true;
+            if (this.opening !== null) {
+                this.opening.resolve();
+                this.opening = null;
+            }
+            return;
+        }
+        if (message.type === "failed") {
+            console.log("render worker could not open the document: " + message.message);
+            this.fail();
+            return;
+        }
+        const job = this.jobs.get(message.id);
+        if (job === undefined) {
+            if (message.type === "rendered") {
+                message.bitmap.close();
+            }
+            return;
+        }
+        this.jobs.delete(message.id);
+        if (message.type === "rendered") {
+            job.resolve(message.bitmap);
+        } else if (message.type === "encoded") {
+            job.resolve({ blob: message.blob, renderMs: message.renderMs });
+        } else {
+            const error = new Error(message.message);
+            error.name = message.name;
+            job.reject(error);
+        }
+    }
+
+    // Resolves with an ImageBitmap of the page at zoomRatio, rasterized at scale device
+    // pixels per CSS pixel
+    render(pageNumber, zoomRatio, orientationDegrees, scale) {
+        return this.submit({ type: "render", pageNumber, zoomRatio, orientationDegrees, scale });
+    }
+
+    // Resolves with {blob, renderMs}, the page fit within width by height pixels and
+    // encoded as PNG, and the milliseconds spent drawing it
+    rasterize(pageNumber, width, height) {
+        return this.submit({
+            type: "render",
+            pageNumber,
+            zoomRatio: 1,
+            orientationDegrees: 0,
+            scale: 1,
+            fitWidth: width,
+            fitHeight: height,
+            encode: true
+        });
+    }
+
+    submit(message) {
+        const id = this.nextId++;
+        const promise = new Promise((resolve, reject) => {
+            this.jobs.set(id, { resolve, reject });
+        });
+        this.worker.postMessage({ ...message, id });
+        return {
+            promise,
+            cancel: () => {
+                const job = this.jobs.get(id);
+                if (job !== undefined) {
+                    this.jobs.delete(id);
+                    this.worker.postMessage({ type: "cancel", id });
+                    job.reject(cancelledError());
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,120 @@
+// Navigation history considered when estimating the reading rate, in milliseconds
+const rateWindow = 2000;
+// How far ahead of the reader to stay, in seconds of navigation at the current rate
+const lookaheadSeconds = 1;
+
+// Decides which pages to render ahead of time from the direction and rate of recent
+// page changes, and renders them one at a time when the main thread is idle.
+export class PrefetchScheduler {
+    // prefetch(pageNumber) starts rendering a page into the cache, isCached(pageNumber)
+    // tells whether it is already there, isBusy() whether a render is in progress and
+    // getMaxPages() how many pages fit the cache budget next to the visible one.
+    // discard(plan) is called when the plan changes to drop prefetches outside of it.
+    constructor({ prefetch, isCached, isBusy, getMaxPages, discard }) {
+        this.prefetch = prefetch;
+        this.discard = discard;
+        this.isCached = isCached;
+        this.isBusy = isBusy;
+        this.getMaxPages = getMaxPages;
+        this.numPages = 0;
+        this.pageNumber = 0;
+        this.direction = 1;
+        this.history = [];
+        this.plan = [];
+        // Pages that failed to render, which are not prefetched again
+        this.failed = new Set();
+        this.idleHandle = 0;
+    }
+
+    reset(numPages) {
+        this.cancel();
+        this.discard([]);
+        this.failed.clear();
+        this.numPages = numPages;
+        this.pageNumber = 0;
+        this.direction = 1;
+        this.history = [];
+        this.plan = [];
+    }
+
+    // Pages per second over the recent history, counting skipped pages
+    getRate(now) {
+        const recent = this.history.filter((entry) => now - entry.time <= rateWindow);
+        this.history = recent;
+        if (recent.length < 2) {
+            return 0;
+        }
+        let distance = 0;
+        for (let i = 1; i < recent.length; i++) {
+            distance += Math.abs(recent[i].pageNumber - recent[i - 1].pageNumber);
+        }
+        const span = Math.max(recent[recent.length - 1].time - recent[0].time, 100);
+        return distance * 1000 / span;
+    }
+
+    onNavigate(pageNumber) {
+        if (pageNumber === this.pageNumber) {
+            return;
+        }
+        const now = performance.now();
+        if (this.pageNumber !== 0) {
+            this.direction = Math.sign(pageNumber - this.pageNumber);
+        }
+        this.pageNumber = pageNumber;
+        this.history.push({ pageNumber, time: now });
+
+        const rate = this.getRate(now);
+        const maxPages = this.getMaxPages();
+        const ahead = Math.min(maxPages, Math.max(1, Math.ceil(rate * lookaheadSeconds)));
+        const plan = [];
+        for (let i = 1; i <= ahead; i++) {
+            plan.push(pageNumber + this.direction * i);
+        }
+        // Keep the neighbor on the other side too, as readers often step back once,
+        // unless prefetching is off
+        if (maxPages > 0) {
+            plan.push(pageNumber - this.direction);
+        }
+        this.plan = plan.filter((page) => page >= 1 && page <= this.numPages);
+
+        this.cancel();
+        this.discard(this.plan);
+        this.schedule();
+    }
+
+    onFailed(pageNumber) {
+        this.failed.add(pageNumber);
+    }
+
+    // Drop the plan and the prefetches in it. The next navigation plans again.
+    clearPlan() {
+        this.cancel();
+        this.plan = [];
+        this.discard([]);
+    }
+
+    schedule() {
+        if (this.idleHandle !== 0) {
+            return;
+        }
+        this.idleHandle = requestIdleCallback(() => {
+            this.idleHandle = 0;
+            // The render in progress schedules the next prefetch when it completes
+            if (this.isBusy()) {
+                return;
+            }
+            const next = this.plan.find((pageNumber) =>
+                !this.isCached(pageNumber) && !this.failed.has(pageNumber));
+            if (next !== undefined) {
+                this.prefetch(next);
+            }
+        });
+    }
+
+    cancel() {
+        if (this.idleHandle !== 0) {
+            cancelIdleCallback(this.idleHandle);
+            this.idleHandle = 0;
+        }
+    }
+}
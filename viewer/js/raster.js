@@ -0,0 +1,106 @@
+import { OffscreenRenderer } from "./offscreen.js";
+
+// Headless page rasterizer behind PdfRasterizer. Pages are drawn and encoded as PNG on
+// the render worker: this page is never attached to a window, so the animation frames
+// pdf.js waits for when rendering on the main thread would never come. The app sends
+// commands over a message port and gets every page back in the reply to its command.
+// The last document stays open, so a batch of pages from one document parses it only
+// once.
+
+const renderer = OffscreenRenderer.isSupported() ? new OffscreenRenderer() : null;
+let documentUrl = null;
+let opened = null;
+// Cancel functions of the pages being rasterized by request id
+const pending = new Map();
+
+function openDocument(url) {
+    if (url !== documentUrl || renderer.failed) {
+        documentUrl = url;
+        opened = renderer.open(url, "");
+    }
+    return opened;
+}
+
+// The bytes of a blob as a string with one character per byte, which the app copies
+// back out without decoding. Message ports only carry strings on Android.
+function binaryString(blob) {
+    return blob.arrayBuffer().then((buffer) => {
+        const bytes = new Uint8Array(buffer);
+        const chunks = [];
+        // In slices, to stay within the argument count limit
+        for (let i = 0; i < bytes.length; i += 0x8000) {
+            chunks.push(String.fromCharCode.apply(null, bytes.subarray(i, i + 0x8000)));
+        }
+        return chunks.join("");
+    });
+}
+
+// Reply to a rasterize command: {renderMs, error} as JSON, then after a line break the
+// bytes of the PNG, none on error
+function rasterizeReply(renderMs, error, png = "") {
+    return JSON.stringify({ renderMs, error }) + "\n" + png;
+}
+
+// Render a page to fit within width by height pixels, keeping its aspect ratio.
+// Resolves with the reply for the app.
+function rasterize(id, url, pageNumber, width, height) {
+    if (renderer === null) {
+        return Promise.resolve(rasterizeReply(0, "OffscreenCanvas is not supported"));
+    }
+    let job = null;
+    let cancelled = false;
+    pending.set(id, () => {
+        cancelled = true;
+        if (job !== null) {
+            job.cancel();
+        }
+    });
+    return openDocument(url).then(() => {
+        if (cancelled) {
+            throw new Error("Rasterizing cancelled");
+        }
+        job = renderer.rasterize(pageNumber, width, height);
+        return job.promise;
+    }).then((result) => binaryString(result.blob).then((png) => {
+        return rasterizeReply(result.renderMs, "", png);
+    })).catch((error) => {
+        return rasterizeReply(0, String(error));
+    }).finally(() => {
+        pending.delete(id);
+    });
+}
+
+function cancel(id) {
+    const cancelJob = pending.get(id);
+    if (cancelJob !== undefined) {
+        cancelJob();
+    }
+}
+
+const commands = {
+    rasterize,
+    cancel
+};
+
+let commandPort = null;
+
+// Commands from the app as {command, arguments, id}, like those of the viewer. Replies
+// are the text a command resolves with, posted back prefixed by the id once it settles.
+globalThis.addEventListener("message", (event) => {
+    if (commandPort !== null || event.data !== "connect" || event.ports.length !== 1) {
+        return;
+    }
+    commandPort = event.ports[0];
+    commandPort.onmessage = (commandEvent) => {
+        const message = JSON.parse(commandEvent.data);
+        const handler = commands[message.command];
+        if (handler === undefined) {
+            return;
+        }
+        Promise.resolve(handler(...(message.arguments ?? []))).then((result) => {
+            if (message.id !== undefined) {
+                commandPort.postMessage(message.id + ":" + (result ?? ""));
+            }
+        });
+    };
+});
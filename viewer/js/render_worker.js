@@ -0,0 +1,153 @@
+import { GlobalWorkerOptions, PDFWorker, getDocument } from "pdfjs-dist";
+
+// Rasterizes pages into OffscreenCanvas away from the main thread of the viewer and
+// transfers the results back as ImageBitmaps. pdf.js cannot share a parsed document
+// between threads, so this worker opens its own instance of the document, with the
+// same options as the one on the main thread, in its own pdf.js worker. That costs a
+// second parse of the cross-reference table and the page tree, a second copy of the
+// fonts and images of the pages drawn here, and a second request for every range it
+// reads, which the app serves from its block cache while the range is still cached.
+// To keep the copy small, only the resources of the page drawn last are kept, and the
+// whole document cache goes on cleanup when memory runs low.
+
+GlobalWorkerOptions.workerSrc = "/viewer/js/worker.js";
+
+// pdf.js creates scratch canvases for patterns, masks and groups through a canvas
+// factory, and the default one needs a document
+class OffscreenCanvasFactory {
+    create(width, height) {
+        const canvas = new OffscreenCanvas(width, height);
+        return { canvas, context: canvas.getContext("2d") };
+    }
+
+    reset(canvasAndContext, width, height) {
+        canvasAndContext.canvas.width = width;
+        canvasAndContext.canvas.height = height;
+    }
+
+    destroy(canvasAndContext) {
+        canvasAndContext.canvas.width = 0;
+        canvasAndContext.canvas.height = 0;
+        canvasAndContext.canvas = null;
+        canvasAndContext.context = null;
+    }
+}
+
+let pdfDoc = null;
+let loadingTask = null;
+// Page whose operator list and images are kept for the next render at another zoom
+let lastPage = null;
+const tasks = new Map();
+// Kept across documents like the one of the main thread
+const pdfWorker = new PDFWorker();
+
+function open(message) {
+    if (loadingTask !== null) {
+        loadingTask.destroy();
+        pdfDoc = null;
+        lastPage = null;
+    }
+    const task = getDocument({
+        url: message.url,
+        password: message.password,
+        disableAutoFetch: true,
+        disableStream: true,
+        rangeChunkSize: 65536,
+        disableFontFace: true,
+        isOffscreenCanvasSupported: true,
+        CanvasFactory: OffscreenCanvasFactory,
+        worker: pdfWorker
+    });
+    loadingTask = task;
+    task.promise.then(function (newDoc) {
+        if (task !== loadingTask) {
+            return;
+        }
+        pdfDoc = newDoc;
+        globalThis.postMessage({ type: "opened" });
+    }, function (reason) {
+        if (task !== loadingTask) {
+            return;
+        }
+        globalThis.postMessage({ type: "failed", message: reason.name + ": " + reason.message });
+    });
+}
+
+function render(message) {
+    const id = message.id;
+    // Checked inside the chain so that a render arriving while no document is open
+    // still gets a reply
+    Promise.resolve().then(function () {
+        if (pdfDoc === null) {
+            throw new Error("No document open");
+        }
+        return pdfDoc.getPage(message.pageNumber);
+    }).then(function (page) {
+        if (!tasks.has(id)) {
+            return;
+        }
+        let zoomRatio = message.zoomRatio;
+        // Fit within a box instead, keeping the aspect ratio of the page
+        if (message.fitWidth !== undefined) {
+            const unscaled = page.getViewport({ scale: 1, rotation: message.orientationDegrees });
+            zoomRatio = Math.min(message.fitWidth / unscaled.width, message.fitHeight / unscaled.height);
+        }
+        const viewport = page.getViewport({ scale: zoomRatio, rotation: message.orientationDegrees });
+        const canvas = new OffscreenCanvas(Math.max(1, viewport.width * message.scale),
+            Math.max(1, viewport.height * message.scale));
+        const renderStart = performance.now();
+        const task = page.render({
+            canvasContext: canvas.getContext("2d", { alpha: false }),
+            viewport: viewport,
+            transform: [message.scale, 0, 0, message.scale, 0, 0]
+        });
+        tasks.set(id, task);
+        return task.promise.then(function () {
+            if (message.encode) {
+                const renderMs = performance.now() - renderStart;
+                page.cleanup();
+                return canvas.convertToBlob({ type: "image/png" }).then(function (blob) {
+                    globalThis.postMessage({ type: "encoded", id, blob, renderMs });
+                });
+            }
+            const bitmap = canvas.transferToImageBitmap();
+            globalThis.postMessage({ type: "rendered", id, bitmap }, [bitmap]);
+            if (lastPage !== page) {
+                if (lastPage !== null) {
+                    lastPage.cleanup();
+                }
+                lastPage = page;
+            }
+        });
+    }).catch(function (error) {
+        globalThis.postMessage({ type: "error", id, name: error.name, message: error.message });
+    }).finally(function () {
+        tasks.delete(id);
+    });
+}
+
+function cancel(message) {
+    const task = tasks.get(message.id);
+    tasks.delete(message.id);
+    if (task) {
+        task.cancel();
+    }
+}
+
+globalThis.onmessage = function (event) {
+    const message = event.data;
+    if (message.type === "open") {
+        open(message);
+    } else if (message.type === "render") {
+        // Registered before getPage resolves so that an early cancel is not lost
+        tasks.set(message.id, null);
+        render(message);
+    } else if (message.type === "cancel") {
+        cancel(message);
+    } else if (message.type === "cleanup" && pdfDoc !== null) {
+        lastPage = null;
+        pdfDoc.cleanup().catch(function (error) {
+            console.log("cleanup error: " + error);
+        });
+    }
+};
@@ -0,0 +1,240 @@
+// Lower values run first
+export const Priority = Object.freeze({
+    VISIBLE: 0,
+    PREVIEW: 1,
+    // Full-resolution tiles over the backdrop of a zoomed page
+    TILE: 2,
+    PREFETCH: 3
+});
+
+const priorityNames = ["visible", "preview", "tile", "prefetch"];
+
+function cancelledError() {
+    const error = new Error("Rendering cancelled");
+    error.name = "RenderingCancelledException";
+    return error;
+}
+
+// Cancellation token handed to a running job. Every pdf.js task the job starts is
+// registered with track() so that cancelling the job cancels them all.
+export class RenderToken {
+    constructor() {
+        this.cancelled = false;
+        this.tasks = new Set();
+    }
+
+    track(task) {
+        if (this.cancelled) {
+            task.cancel();
+        } else {
+            this.tasks.add(task);
+            task.promise.finally(() => this.tasks.delete(task)).catch(() => {});
+        }
+        return task;
+    }
+
+    // Throws when the job was cancelled, for use between asynchronous steps
+    check() {
+        if (this.cancelled) {
+            throw cancelledError();
+        }
+    }
+
+    cancel() {
+        this.cancelled = true;
+        for (const task of this.tasks) {
+            task.cancel();
+        }
+        this.tasks.clear();
+    }
+}
+
+// Runs render jobs one at a time in priority order. A job that is submitted while a
+// lower priority one runs preempts it, and the preempted job is queued again. Jobs
+// with the same key are merged, keeping the highest priority and every listener, so
+// a page requested while it is being prefetched is not rendered twice.
+export class RenderScheduler {
+    constructor(onIdle) {
+        this.onIdle = onIdle;
+        this.queue = [];
+        this.running = null;
+        this.sequence = 0;
+        this.stats = priorityNames.map(() => ({
+            submitted: 0,
+            started: 0,
+            completed: 0,
+            failed: 0,
+            cancelled: 0,
+            preempted: 0,
+            totalWaitMs: 0,
+            maxWaitMs: 0
+        }));
+        this.maxDepth = 0;
+    }
+
+    get busy() {
+        return this.running !== null || this.queue.length !== 0;
+    }
+
+    find(key) {
+        if (this.running !== null && this.running.key === key) {
+            return this.running;
+        }
+        return this.queue.find((job) => job.key === key);
+    }
+
+    // run(token, job) returns a promise of the job result. Every onDone listener is
+    // called with (result, null) when it resolves, or with (null, error) when it fails
+    // other than by being cancelled. job.progress(value) forwards intermediate results
+    // to the onProgress listeners.
+    submit({ key, pageNumber = 0, priority, generation = 0, run, onDone = null, onProgress = null }) {
+        let job = this.find(key);
+        if (job !== undefined) {
+            job.priority = Math.min(job.priority, priority);
+            job.generation = Math.max(job.generation, generation);
+            if (onDone !== null) {
+                job.doneListeners.push(onDone);
+            }
+            if (onProgress !== null) {
+                job.progressListeners.push(onProgress);
+            }
+            this.sortQueue();
+        } else {
+            job = {
+                key,
+                pageNumber,
+                priority,
+                generation,
+                run,
+                order: this.sequence++,
+                submitTime: performance.now(),
+                token: null,
+                doneListeners: onDone !== null ? [onDone] : [],
+                progressListeners: onProgress !== null ? [onProgress] : [],
+                progress(value) {
+                    for (const listener of this.progressListeners) {
+                        listener(value);
+                    }
+                }
+            };
+            this.stats[priority].submitted++;
+            this.queue.push(job);
+            this.sortQueue();
+            this.maxDepth = Math.max(this.maxDepth, this.queue.length);
+        }
+
+        if (this.running !== null && this.running !== job && job.priority < this.running.priority) {
+            this.preempt();
+        }
+        this.pump();
+        return job;
+    }
+
+    sortQueue() {
+        this.queue.sort((a, b) => a.priority - b.priority || a.order - b.order);
+    }
+
+    preempt() {
+        const job = this.running;
+        this.running = null;
+        job.token.cancel();
+        job.token = null;
+        job.submitTime = performance.now();
+        this.stats[job.priority].preempted++;
+        this.queue.push(job);
+        this.sortQueue();
+    }
+
+    // Drop queued jobs matching predicate and cancel the running one if it matches
+    cancel(predicate) {
+        this.queue = this.queue.filter((job) => {
+            if (predicate(job)) {
+                this.stats[job.priority].cancelled++;
+                return false;
+            }
+            return true;
+        });
+        if (this.running !== null && predicate(this.running)) {
+            const job = this.running;
+            this.running = null;
+            job.token.cancel();
+            job.token = null;
+            this.stats[job.priority].cancelled++;
+        }
+        this.pump();
+    }
+
+    cancelAll() {
+        this.cancel(() => true);
+    }
+
+    pump() {
+        if (this.running !== null) {
+            return;
+        }
+        if (this.queue.length === 0) {
+            this.onIdle();
+            return;
+        }
+
+        const job = this.queue.shift();
+        const token = new RenderToken();
+        this.running = job;
+        job.token = token;
+
+        const waitMs = performance.now() - job.submitTime;
+        const stats = this.stats[job.priority];
+        stats.started++;
+        stats.totalWaitMs += waitMs;
+        stats.maxWaitMs = Math.max(stats.maxWaitMs, waitMs);
+
+        Promise.resolve().then(() => job.run(token, job)).then((result) => {
+            if (job.token !== token) {
+                return;
+            }
+            // Cleared before notifying so that listeners can submit follow-up jobs
+            this.running = null;
+            job.token = null;
+            this.stats[job.priority].completed++;
+            for (const listener of job.doneListeners) {
+                listener(result, null);
+            }
+            this.pump();
+        }, (error) => {
+            if (job.token !== token) {
+                return;
+            }
+            this.running = null;
+            job.token = null;
+            if (error.name !== "RenderingCancelledException") {
+                console.log("rendering error: " + error);
+                this.stats[job.priority].failed++;
+                for (const listener of job.doneListeners) {
+                    listener(null, error);
+                }
+            }
+            this.pump();
+        });
+    }
+
+    getStats() {
+        const byPriority = {};
+        this.stats.forEach((stats, priority) => {
+            byPriority[priorityNames[priority]] = {
+                submitted: stats.submitted,
+                completed: stats.completed,
+                failed: stats.failed,
+                cancelled: stats.cancelled,
+                preempted: stats.preempted,
+                averageWaitMs: stats.started === 0 ? 0 : stats.totalWaitMs / stats.started,
+                maxWaitMs: stats.maxWaitMs
+            };
+        });
+        return {
+            depth: this.queue.length,
+            maxDepth: this.maxDepth,
+            running: this.running !== null ? priorityNames[this.running.priority] : null,
+            priorities: byPriority
+        };
+    }
+}
@@ -0,0 +1,257 @@
+// Find in document, over an index of the text of every page. pdf.js extracts the text
+// of a page in its worker; the index asks for one page at a time while the viewer is
+// idle and remembers where it stopped, so indexing resumes with the next search instead
+// of starting over. A search scans the pages indexed so far right away, then follows
+// the indexing from the page being read, reporting hits as they are found.
+
+// Pause between batches of results sent to the app
+const reportIntervalMs = 100;
+// Longest wait for an idle period while a search needs more pages
+const indexTimeoutMs = 50;
+
+// Lower case without changing the length of the text, so that offsets in the folded
+// text are offsets in the original one
+function fold(text) {
+    return text.replace(/\p{Lu}/gu, (c) => {
+        const lower = c.toLowerCase();
+        return lower.length === c.length ? lower : c;
+    });
+}
+
+function countMatches(text, query) {
+    let count = 0;
+    for (let i = text.indexOf(query); i !== -1; i = text.indexOf(query, i + query.length)) {
+        count++;
+    }
+    return count;
+}
+
+export class SearchIndex {
+    // onResults(query, pageMatches, done) receives [pageNumber, count] pairs of the pages
+    // with hits found since the previous call. isBusy() tells when rendering is going on.
+    constructor(onResults, isBusy) {
+        this.onResults = onResults;
+        this.isBusy = isBusy;
+        this.pdfDoc = null;
+        this.texts = [];
+        this.indexedCount = 0;
+        this.cursor = 1;
+        this.extracting = false;
+        this.idleHandle = 0;
+        this.query = "";
+        // The query as typed, which the results are reported for
+        this.queryText = "";
+        this.remaining = 0;
+        this.found = [];
+        this.lastReport = 0;
+        this.selectedPage = 0;
+        this.selectedIndex = 0;
+    }
+
+    setDocument(pdfDoc) {
+        this.cancelIdle();
+        this.pdfDoc = pdfDoc;
+        this.texts = pdfDoc !== null ? new Array(pdfDoc.numPages).fill(null) : [];
+        this.indexedCount = 0;
+        this.cursor = 1;
+        this.extracting = false;
+        this.query = "";
+        this.queryText = "";
+        this.selectedPage = 0;
+    }
+
+    get active() {
+        return this.query !== "";
+    }
+
+    // Start a search for query, or end the current one for an empty query. Pages not
+    // indexed yet are visited from startPage on, wrapping around at the end.
+    find(query, startPage) {
+        this.query = fold(query);
+        this.queryText = query;
+        this.selectedPage = 0;
+        this.found = [];
+        if (!this.active || this.pdfDoc === null) {
+            this.cancelIdle();
+            return;
+        }
+        for (let i = 0; i < this.texts.length; i++) {
+            if (this.texts[i] !== null) {
+                this.scan(i + 1);
+            }
+        }
+        this.remaining = this.texts.length - this.indexedCount;
+        this.cursor = Math.min(Math.max(1, startPage), this.texts.length);
+        this.report(true);
+        this.schedule();
+    }
+
+    select(pageNumber, index) {
+        this.selectedPage = pageNumber;
+        this.selectedIndex = index;
+    }
+
+    scan(pageNumber) {
+        const count = countMatches(this.texts[pageNumber - 1], this.query);
+        if (count !== 0) {
+            this.found.push([pageNumber, count]);
+        }
+    }
+
+    // Send the hits found so far, batched unless force is set or the search is done
+    report(force) {
+        const done = this.remaining === 0;
+        const now = performance.now();
+        if (!force && !done && now - this.lastReport < reportIntervalMs) {
+            return;
+        }
+        if (!force && !done && this.found.length === 0) {
+            return;
+        }
+        this.lastReport = now;
+        const found = this.found;
+        this.found = [];
+        this.onResults(this.queryText, found, done);
+    }
+
+    cancelIdle() {
+        if (this.idleHandle !== 0) {
+            cancelIdleCallback(this.idleHandle);
+            this.idleHandle = 0;
+        }
+    }
+
+    schedule() {
+        if (this.idleHandle !== 0 || this.extracting || !this.active || this.remaining === 0) {
+            return;
+        }
+        this.idleHandle = requestIdleCallback((deadline) => {
+            this.idleHandle = 0;
+            // Give way to rendering unless the search has waited long enough
+            if (this.isBusy() && !deadline.didTimeout) {
+                this.schedule();
+                return;
+            }
+            this.indexNext();
+        }, { timeout: indexTimeoutMs });
+    }
+
+    nextUnindexed() {
+        for (let i = 0; i < this.texts.length; i++) {
+            const pageNumber = (this.cursor - 1 + i) % this.texts.length + 1;
+            if (this.texts[pageNumber - 1] === null) {
+                return pageNumber;
+            }
+        }
+        return 0;
+    }
+
+    indexNext() {
+        const pageNumber = this.nextUnindexed();
+        if (pageNumber === 0) {
+            return;
+        }
+        const pdfDoc = this.pdfDoc;
+        this.extracting = true;
+        pdfDoc.getPage(pageNumber).then((page) => page.getTextContent()).then((textContent) => {
+            if (pdfDoc !== this.pdfDoc) {
+                return;
+            }
+            this.extracting = false;
+            if (this.texts[pageNumber - 1] === null) {
+                this.texts[pageNumber - 1] = fold(textContent.items.map((item) =>
+                    (item.str ?? "") + (item.hasEOL ? "\n" : "")).join(""));
+                this.indexedCount++;
+                this.remaining--;
+                if (this.active) {
+                    this.scan(pageNumber);
+                }
+            }
+            this.cursor = pageNumber % this.texts.length + 1;
+            if (this.active) {
+                this.report(false);
+            }
+            this.schedule();
+        }, (error) => {
+            if (pdfDoc !== this.pdfDoc) {
+                return;
+            }
+            console.log("text extraction error: " + error);
+            this.extracting = false;
+            // Index the page as empty rather than retrying it forever
+            this.texts[pageNumber - 1] = "";
+            this.indexedCount++;
+            this.remaining--;
+            this.cursor = pageNumber % this.texts.length + 1;
+            if (this.active) {
+                this.report(false);
+            }
+            this.schedule();
+        });
+    }
+
+    // Mark the hits in the text layer of a page, the selected one apart. Returns the
+    // element of the selected hit when it is on this page.
+    highlight(pageNumber, div) {
+        clearHighlights(div);
+        if (!this.active) {
+            return null;
+        }
+        // The text layer holds the text of the page as text nodes, with line breaks
+        const nodes = [];
+        let text = "";
+        const walker = document.createTreeWalker(div, NodeFilter.SHOW_TEXT | NodeFilter.SHOW_ELEMENT);
+        for (let node = walker.nextNode(); node !== null; node = walker.nextNode()) {
+            if (node.nodeType === Node.TEXT_NODE) {
+                nodes.push({ node, start: text.length });
+                text += node.data;
+            } else if (node.nodeName === "BR") {
+                text += "\n";
+            }
+        }
+        const folded = fold(text);
+        const ranges = [];
+        for (let i = folded.indexOf(this.query); i !== -1; i = folded.indexOf(this.query, i + this.query.length)) {
+            ranges.push([i, i + this.query.length]);
+        }
+
+        let selected = null;
+        // Wrap from the end so that splitting a text node leaves the offsets of the
+        // earlier hits valid
+        for (let r = ranges.length - 1; r >= 0; r--) {
+            const isSelected = pageNumber === this.selectedPage && r === this.selectedIndex;
+            const [start, end] = ranges[r];
+            for (let n = nodes.length - 1; n >= 0; n--) {
+                const { node, start: nodeStart } = nodes[n];
+                const nodeEnd = nodeStart + node.data.length;
+                if (nodeEnd <= start || nodeStart >= end) {
+                    continue;
+                }
+                const from = Math.max(start, nodeStart) - nodeStart;
+                const to = Math.min(end, nodeEnd) - nodeStart;
+                const range = document.createRange();
+                range.setStart(node, from);
+                range.setEnd(node, to);
+                const span = document.createElement("span");
+                span.className = isSelected ? "highlight appended selected" : "highlight appended";
+                range.surroundContents(span);
+                if (isSelected) {
+                    selected = span;
+                }
+            }
+        }
+        return selected;
+    }
+}
+
+// Remove the hits marked in a text layer
+export function clearHighlights(div) {
+    const highlights = div.querySelectorAll(".highlight");
+    if (highlights.length === 0) {
+        return;
+    }
+    for (const highlight of highlights) {
+        highlight.replaceWith(...highlight.childNodes);
+    }
+    div.normalize();
+}
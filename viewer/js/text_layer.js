@@ -0,0 +1,91 @@
+import { renderTextLayer } from "pdfjs-dist";
+
+// Pages whose text content is kept for building their text layer again
+const maxTextContents = 32;
+
+function cancelledError() {
+    const error = new Error("Text layer cancelled");
+    error.name = "RenderingCancelledException";
+    return error;
+}
+
+// Builds text layers only for pages that are shown. A text layer has a span per run
+// of text, thousands on dense pages, so rendered pages start without one and get it
+// when the viewer is idle or the page is touched, and lose it again once they leave
+// the screen. The text content extracted by pdf.js is much cheaper to keep than the
+// spans, so it is cached for the most recently used pages instead.
+export class TextLayerBuilder {
+    constructor(onBuilt) {
+        this.onBuilt = onBuilt;
+        this.pdfDoc = null;
+        this.contents = new Map();
+    }
+
+    setDocument(pdfDoc) {
+        this.pdfDoc = pdfDoc;
+        this.contents.clear();
+    }
+
+    // Forget the cached text content, which is extracted again when needed
+    clearTextContents() {
+        this.contents.clear();
+    }
+
+    getTextContent(pageNumber) {
+        let content = this.contents.get(pageNumber);
+        if (content !== undefined) {
+            this.contents.delete(pageNumber);
+        } else {
+            content = this.pdfDoc.getPage(pageNumber).then((page) => page.getTextContent());
+            content.catch(() => {
+                if (this.contents.get(pageNumber) === content) {
+                    this.contents.delete(pageNumber);
+                }
+            });
+        }
+        this.contents.set(pageNumber, content);
+        if (this.contents.size > maxTextContents) {
+            this.contents.delete(this.contents.keys().next().value);
+        }
+        return content;
+    }
+
+    // Build the text layer of a rendered page into div, which becomes the
+    // textLayerDiv of the entry once done. Returns a task with a promise resolving
+    // with the div and cancel(), like the pdf.js ones.
+    build(entry, div) {
+        const pdfDoc = this.pdfDoc;
+        let layerTask = null;
+        let cancelled = false;
+        const promise = this.getTextContent(entry.pageNumber).then((textContent) => {
+            if (cancelled || pdfDoc !== this.pdfDoc) {
+                throw cancelledError();
+            }
+            const start = performance.now();
+            layerTask = renderTextLayer({
+                textContentSource: textContent,
+                container: div,
+                viewport: entry.viewport
+            });
+            return layerTask.promise.then(() => {
+                entry.textLayerDiv = div;
+                this.onBuilt(performance.now() - start, entry, div);
+                return div;
+            });
+        });
+        return {
+            promise,
+            cancel() {
+                cancelled = true;
+                if (layerTask !== null) {
+                    layerTask.cancel();
+                }
+            }
+        };
+    }
+
+    // Drop the spans of a page that is no longer shown, keeping its text content
+    static release(entry) {
+        entry.textLayerDiv = null;
+    }
+}
@@ -0,0 +1,215 @@
+import { Priority } from "./scheduler.js";
+
+// Pages whose full-resolution canvas would exceed this many pixels are shown as a
+// low-resolution backdrop with full-resolution tiles drawn over the visible area.
+export const maxCanvasPixels = 4096 * 4096 / 4;
+
+// Tile edge in CSS pixels, and how far beyond the visible area tiles are kept.
+const tileSize = 256;
+const tileMargin = 256;
+const maxTiles = 64;
+
+export function getBackdropScale(viewport, ratio) {
+    const pixels = viewport.width * viewport.height * ratio * ratio;
+    if (pixels <= maxCanvasPixels) {
+        return ratio;
+    }
+    return ratio * Math.sqrt(maxCanvasPixels / pixels);
+}
+
+function releaseTile(canvas) {
+    // Shrinking the canvas frees its backing store without waiting for GC
+    canvas.width = 0;
+    canvas.height = 0;
+    canvas.remove();
+}
+
+// Tiles are rendered one at a time as jobs of the render scheduler, below the pages
+// being shown and above prefetching
+export class TileLayer {
+    constructor(div, scheduler) {
+        this.div = div;
+        this.scheduler = scheduler;
+        this.page = null;
+        this.viewport = null;
+        this.ratio = 1;
+        this.tiles = new Map();
+        // Tiles that failed to render, which are not tried again for this page
+        this.failed = new Set();
+        this.margin = tileMargin;
+        // Increments with every page shown, keeping the job keys of pages apart
+        this.showId = 0;
+        this.job = null;
+        this.jobKey = null;
+        this.updateScheduled = false;
+        globalThis.addEventListener("scroll", () => this.scheduleUpdate(), { passive: true });
+    }
+
+    show(page, viewport, ratio) {
+        this.clear();
+        this.showId++;
+        this.page = page;
+        this.viewport = viewport;
+        this.ratio = ratio;
+        this.div.style.width = viewport.width + "px";
+        this.div.style.height = viewport.height + "px";
+        this.div.hidden = false;
+        this.scheduleUpdate();
+    }
+
+    clear() {
+        this.cancelTask();
+        for (const tile of this.tiles.values()) {
+            releaseTile(tile);
+        }
+        this.tiles.clear();
+        this.failed.clear();
+        this.page = null;
+        this.viewport = null;
+        this.div.hidden = true;
+    }
+
+    // Keep tiles around the visible area, or only the visible ones under memory
+    // pressure, releasing the others right away
+    setMarginEnabled(enabled) {
+        this.margin = enabled ? tileMargin : 0;
+        this.update();
+    }
+
+    cancelTask() {
+        if (this.job !== null) {
+            const job = this.job;
+            this.job = null;
+            this.jobKey = null;
+            this.scheduler.cancel((queued) => queued === job);
+        }
+    }
+
+    scheduleUpdate() {
+        if (this.page === null || this.updateScheduled) {
+            return;
+        }
+        this.updateScheduled = true;
+        requestAnimationFrame(() => {
+            this.updateScheduled = false;
+            this.update();
+        });
+    }
+
+    // Tile coordinates intersecting the visible area plus the margin, nearest to the
+    // center of the screen first
+    wantedTiles() {
+        const rect = this.div.getBoundingClientRect();
+        const left = Math.max(0, -rect.left - this.margin);
+        const top = Math.max(0, -rect.top - this.margin);
+        const right = Math.min(this.viewport.width, globalThis.innerWidth - rect.left + this.margin);
+        const bottom = Math.min(this.viewport.height, globalThis.innerHeight - rect.top + this.margin);
+        const centerX = globalThis.innerWidth / 2 - rect.left;
+        const centerY = globalThis.innerHeight / 2 - rect.top;
+
+        const wanted = [];
+        for (let y = Math.floor(top / tileSize); y * tileSize < bottom; y++) {
+            for (let x = Math.floor(left / tileSize); x * tileSize < right; x++) {
+                const distance = Math.hypot((x + 0.5) * tileSize - centerX, (y + 0.5) * tileSize - centerY);
+                wanted.push({ key: x + "," + y, x, y, distance });
+            }
+        }
+        wanted.sort((a, b) => a.distance - b.distance);
+        return wanted.slice(0, maxTiles);
+    }
+
+    update() {
+        if (this.page === null) {
+            return;
+        }
+        const wanted = this.wantedTiles();
+        const wantedKeys = new Set(wanted.map((tile) => tile.key));
+
+        for (const [key, tile] of this.tiles) {
+            if (!wantedKeys.has(key)) {
+                releaseTile(tile);
+                this.tiles.delete(key);
+            }
+        }
+        // The job may have been dropped along with others by the viewer
+        if (this.job !== null && this.scheduler.find(this.job.key) !== this.job) {
+            this.job = null;
+            this.jobKey = null;
+        }
+        if (this.jobKey !== null && !wantedKeys.has(this.jobKey)) {
+            this.cancelTask();
+        }
+        if (this.job !== null) {
+            return;
+        }
+
+        const next = wanted.find((tile) => !this.tiles.has(tile.key) && !this.failed.has(tile.key));
+        if (next !== undefined) {
+            this.renderTile(next);
+        }
+    }
+
+    renderTile(tile) {
+        const page = this.page;
+        const viewport = this.viewport;
+        const ratio = this.ratio;
+        const job = this.scheduler.submit({
+            key: "tile " + this.showId + " " + tile.key,
+            pageNumber: page.pageNumber,
+            priority: Priority.TILE,
+            run: (token) => drawTile(token, page, viewport, ratio, tile),
+            onDone: (canvas) => {
+                if (this.job !== job) {
+                    if (canvas !== null) {
+                        releaseTile(canvas);
+                    }
+                    return;
+                }
+                this.job = null;
+                this.jobKey = null;
+                // Move on to the next tile either way
+                if (canvas === null) {
+                    this.failed.add(tile.key);
+                } else {
+                    this.div.appendChild(canvas);
+                    this.tiles.set(tile.key, canvas);
+                }
+                this.update();
+            }
+        });
+        this.job = job;
+        this.jobKey = tile.key;
+    }
+}
+
+// Render a tile into a new canvas. Resolves with null when rendering failed, and
+// rejects only when cancelled.
+function drawTile(token, page, viewport, ratio, tile) {
+    const x = tile.x * tileSize;
+    const y = tile.y * tileSize;
+    const width = Math.min(tileSize, viewport.width - x);
+    const height = Math.min(tileSize, viewport.height - y);
+
+    const canvas = document.createElement("canvas");
+    canvas.className = "tile";
+    canvas.width = Math.ceil(width * ratio);
+    canvas.height = Math.ceil(height * ratio);
+    canvas.style.left = x + "px";
+    canvas.style.top = y + "px";
+    canvas.style.width = width + "px";
+    canvas.style.height = height + "px";
+
+    const task = token.track(page.render({
+        canvasContext: canvas.getContext("2d", { alpha: false }),
+        viewport: viewport,
+        transform: [ratio, 0, 0, ratio, -x * ratio, -y * ratio]
+    }));
+    return task.promise.then(() => canvas, (error) => {
+        releaseTile(canvas);
+        if (error.name === "RenderingCancelledException") {
+            throw error;
+        }
+        console.log("tile rendering error: " + error);
+        return null;
+    });
+}